@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy.benchmarks;
+
+import com.p6spy.engine.spy.P6ModuleManager;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+/**
+ * In-memory HSQLDB database shared by the benchmarks, plus the statements they execute.
+ */
+final class BenchmarkDatabase {
+  static final String HSQLDB_URL = "jdbc:hsqldb:mem:benchmarks";
+  static final String P6SPY_URL = "jdbc:p6spy:hsqldb:mem:benchmarks";
+
+  private static final int ROWS = 1000;
+  private static final String P6SPY_OPTION_PREFIX = "p6spy.config.";
+
+  private final Connection connection;
+  private final PreparedStatement select;
+  private final Statement update;
+  private int id;
+
+  private BenchmarkDatabase(Connection connection) throws SQLException {
+    this.connection = connection;
+    this.select = connection.prepareStatement("SELECT name FROM employee WHERE id = ?");
+    this.update = connection.createStatement();
+  }
+
+  /**
+   * Reloads p6spy with the given options, which take precedence over any {@code spy.properties}.
+   */
+  static void configureP6Spy(Map<String, String> options) {
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      System.setProperty(P6SPY_OPTION_PREFIX + option.getKey(), option.getValue());
+    }
+    P6ModuleManager.getInstance().reload();
+  }
+
+  static BenchmarkDatabase open(String url) throws SQLException {
+    try (Connection setup = DriverManager.getConnection(HSQLDB_URL);
+        Statement statement = setup.createStatement()) {
+      statement.executeUpdate("CREATE TABLE IF NOT EXISTS employee (id INTEGER PRIMARY KEY, name VARCHAR(64))");
+      statement.executeUpdate("DELETE FROM employee");
+      for (int i = 0; i < ROWS; i++) {
+        statement.executeUpdate("INSERT INTO employee VALUES (" + i + ", 'employee " + i + "')");
+      }
+    }
+    return new BenchmarkDatabase(DriverManager.getConnection(url));
+  }
+
+  String preparedQuery() throws SQLException {
+    select.setInt(1, nextId());
+    try (ResultSet resultSet = select.executeQuery()) {
+      return resultSet.next() ? resultSet.getString(1) : null;
+    }
+  }
+
+  int statementUpdate() throws SQLException {
+    return update.executeUpdate("UPDATE employee SET name = 'renamed' WHERE id = " + nextId());
+  }
+
+  void close() throws SQLException {
+    select.close();
+    update.close();
+    connection.close();
+  }
+
+  private int nextId() {
+    id = (id + 1) % ROWS;
+    return id;
+  }
+}
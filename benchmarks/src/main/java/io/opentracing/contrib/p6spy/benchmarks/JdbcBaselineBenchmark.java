@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy.benchmarks;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a statement without any tracing: plain HSQLDB, and HSQLDB wrapped by p6spy with no
+ * module other than p6spy's own core module.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JdbcBaselineBenchmark {
+
+  @Param({"hsqldb", "p6spy"})
+  public String driver;
+
+  private BenchmarkDatabase database;
+
+  @Setup
+  public void setup() throws SQLException {
+    if ("p6spy".equals(driver)) {
+      BenchmarkDatabase.configureP6Spy(
+          Collections.singletonMap("modulelist", "com.p6spy.engine.spy.P6SpyFactory"));
+      database = BenchmarkDatabase.open(BenchmarkDatabase.P6SPY_URL);
+    } else {
+      database = BenchmarkDatabase.open(BenchmarkDatabase.HSQLDB_URL);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    database.close();
+  }
+
+  @Benchmark
+  public String preparedQuery() throws SQLException {
+    return database.preparedQuery();
+  }
+
+  @Benchmark
+  public int statementUpdate() throws SQLException {
+    return database.statementUpdate();
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy.benchmarks;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.util.GlobalTracer;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a statement going through p6spy with the {@code TracingP6SpyFactory} module, for each
+ * tracing feature enabled on its own under an active span. Compare with the {@code none} feature,
+ * and with {@link JdbcBaselineBenchmark}. Each combination runs in its own fork, so the options of
+ * one feature never leak into another.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(org.openjdk.jmh.annotations.Scope.Thread)
+public class TracingFeatureBenchmark {
+
+  @Param({"noop", "mock"})
+  public String tracer;
+
+  @Param({"none", "sampling", "maxSpansPerSecond", "slowOnly", "fingerprint", "async",
+      "compression", "governor", "redaction", "histograms", "monitoring", "nPlusOne",
+      "resultSetFetch"})
+  public String feature;
+
+  private BenchmarkDatabase database;
+  private Span parent;
+  private Scope parentScope;
+
+  @Setup
+  public void setup() throws SQLException {
+    final Tracer registered = "mock".equals(tracer) ? new DiscardingMockTracer() : NoopTracerFactory.create();
+    GlobalTracer.registerIfAbsent(registered);
+
+    final Map<String, String> options = new HashMap<>();
+    options.put("modulelist", "io.opentracing.contrib.p6spy.TracingP6SpyFactory");
+    options.put("tracingPeerService", "benchmarks");
+    options.putAll(featureOptions(feature));
+    BenchmarkDatabase.configureP6Spy(options);
+    database = BenchmarkDatabase.open(BenchmarkDatabase.P6SPY_URL);
+
+    parent = GlobalTracer.get().buildSpan("parent").start();
+    parentScope = GlobalTracer.get().activateSpan(parent);
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    parentScope.close();
+    parent.finish();
+    database.close();
+  }
+
+  @Benchmark
+  public String preparedQuery() throws SQLException {
+    return database.preparedQuery();
+  }
+
+  @Benchmark
+  public int statementUpdate() throws SQLException {
+    return database.statementUpdate();
+  }
+
+  /**
+   * Returns the tracing options enabling the feature on its own.
+   */
+  private static Map<String, String> featureOptions(String feature) {
+    final Map<String, String> options = new HashMap<>();
+    switch (feature) {
+      case "none":
+        break;
+      case "sampling":
+        options.put("traceSampleRate", "0.01");
+        break;
+      case "maxSpansPerSecond":
+        options.put("traceMaxSpansPerSecond", "100");
+        break;
+      case "slowOnly":
+        options.put("traceSlowerThanMillis", "1000");
+        break;
+      case "fingerprint":
+        options.put("traceStatementFingerprint", "true");
+        break;
+      case "async":
+        options.put("traceAsyncQueueSize", "1024");
+        break;
+      case "compression":
+        options.put("traceCompressStatements", "true");
+        break;
+      case "governor":
+        options.put("traceOverheadBudgetPercent", "5");
+        break;
+      case "redaction":
+        options.put("traceWithStatementValues", "true");
+        options.put("traceRedactColumns", "id");
+        break;
+      case "histograms":
+        options.put("traceLatencyHistograms", "true");
+        break;
+      case "monitoring":
+        options.put("traceMonitoring", "true");
+        break;
+      case "nPlusOne":
+        options.put("traceNPlusOneThreshold", "10");
+        break;
+      case "resultSetFetch":
+        options.put("traceResultSetFetch", "true");
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown feature " + feature);
+    }
+    return options;
+  }
+
+  /**
+   * Mock tracer that does not keep finished spans, so that memory does not grow with the number of
+   * benchmark invocations.
+   */
+  private static final class DiscardingMockTracer extends MockTracer {
+    @Override protected void onSpanFinished(MockSpan mockSpan) {
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy.benchmarks;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.util.GlobalTracer;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a statement going through p6spy with the {@code TracingP6SpyFactory} module, for each
+ * combination of tracing options. Compare with {@link JdbcBaselineBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(org.openjdk.jmh.annotations.Scope.Thread)
+public class TracingListenerBenchmark {
+
+  @Param({"noop", "mock"})
+  public String tracer;
+
+  @Param({"false", "true"})
+  public boolean activeSpan;
+
+  @Param({"false", "true"})
+  public boolean traceWithActiveSpanOnly;
+
+  @Param({"false", "true"})
+  public boolean traceWithStatementValues;
+
+  private BenchmarkDatabase database;
+  private Span parent;
+  private Scope parentScope;
+
+  @Setup
+  public void setup() throws SQLException {
+    final Tracer registered = "mock".equals(tracer) ? new DiscardingMockTracer() : NoopTracerFactory.create();
+    GlobalTracer.registerIfAbsent(registered);
+
+    final Map<String, String> options = new HashMap<>();
+    options.put("modulelist", "io.opentracing.contrib.p6spy.TracingP6SpyFactory");
+    options.put("tracingPeerService", "benchmarks");
+    options.put("traceWithActiveSpanOnly", String.valueOf(traceWithActiveSpanOnly));
+    options.put("traceWithStatementValues", String.valueOf(traceWithStatementValues));
+    BenchmarkDatabase.configureP6Spy(options);
+    database = BenchmarkDatabase.open(BenchmarkDatabase.P6SPY_URL);
+
+    if (activeSpan) {
+      parent = GlobalTracer.get().buildSpan("parent").start();
+      parentScope = GlobalTracer.get().activateSpan(parent);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    if (parentScope != null) {
+      parentScope.close();
+      parent.finish();
+    }
+    database.close();
+  }
+
+  @Benchmark
+  public String preparedQuery() throws SQLException {
+    return database.preparedQuery();
+  }
+
+  @Benchmark
+  public int statementUpdate() throws SQLException {
+    return database.statementUpdate();
+  }
+
+  /**
+   * Mock tracer that does not keep finished spans, so that memory does not grow with the number of
+   * benchmark invocations.
+   */
+  private static final class DiscardingMockTracer extends MockTracer {
+    @Override protected void onSpanFinished(MockSpan mockSpan) {
+    }
+  }
+}
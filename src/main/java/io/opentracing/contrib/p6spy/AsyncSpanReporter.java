@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds and finishes spans on a background thread, off the threads executing the statements.
+ * Spans wait in a bounded queue and are handled in batches; when the queue is full, the
+ * {@link OverflowPolicy} decides which span is dropped, or whether the calling thread handles it.
+ */
+final class AsyncSpanReporter {
+  private static final Logger log = Logger.getLogger(AsyncSpanReporter.class.getName());
+  private static final int MAX_BATCH_SIZE = 256;
+  /** Queued by {@link #close()}, stops the reporter thread. */
+  private static final Runnable STOP = new Runnable() {
+    @Override public void run() {
+    }
+  };
+  /** Reporters in use, by {@code jmxPrefix} of their p6spy configuration. */
+  private static final Map<String, AsyncSpanReporter> sharedReporters = new HashMap<>();
+
+  enum OverflowPolicy {
+    /** Drops the span being submitted. */
+    DROP_NEWEST,
+    /** Drops the oldest queued span to make room for the span being submitted. */
+    DROP_OLDEST,
+    /** Handles the span being submitted on the calling thread. */
+    CALLER_RUNS;
+
+    static OverflowPolicy parse(String value, OverflowPolicy defaultValue) {
+      if (value == null) {
+        return defaultValue;
+      }
+      for (OverflowPolicy policy : values()) {
+        if (policy.name().equalsIgnoreCase(value.trim())) {
+          return policy;
+        }
+      }
+      return defaultValue;
+    }
+  }
+
+  private final int capacity;
+  private final BlockingQueue<Runnable> queue;
+  private final OverflowPolicy overflowPolicy;
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean closed;
+
+  AsyncSpanReporter(int capacity, OverflowPolicy overflowPolicy) {
+    this.capacity = capacity;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.overflowPolicy = overflowPolicy;
+    this.thread = new Thread(new Runnable() {
+      @Override public void run() {
+        drain();
+      }
+    }, "p6spy-tracing-reporter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns the reporter of the p6spy configuration with the given {@code jmxPrefix}, shared by the
+   * reloads of {@code spy.properties}: the reporter in use is kept if its settings did not change,
+   * and closed otherwise.
+   *
+   * @param capacity the size of the queue, 0 not to report spans asynchronously, which returns
+   *     {@code null}
+   */
+  static AsyncSpanReporter publish(String jmxPrefix, int capacity, OverflowPolicy overflowPolicy) {
+    final String key = jmxPrefix != null ? jmxPrefix : "";
+    final AsyncSpanReporter reporter;
+    final AsyncSpanReporter previous;
+    synchronized (sharedReporters) {
+      final AsyncSpanReporter current = sharedReporters.get(key);
+      if (current != null && current.capacity == capacity
+          && current.overflowPolicy == overflowPolicy) {
+        return current;
+      }
+      reporter = capacity > 0 ? new AsyncSpanReporter(capacity, overflowPolicy) : null;
+      previous = reporter != null ? sharedReporters.put(key, reporter) : sharedReporters.remove(key);
+    }
+    if (previous != null) {
+      previous.close();
+    }
+    return reporter;
+  }
+
+  /**
+   * @param span builds and finishes a span, on the reporter thread unless the queue is full or the
+   *     reporter is closed
+   */
+  void submit(Runnable span) {
+    if (closed) {
+      report(span);
+      return;
+    }
+    if (queue.offer(span)) {
+      if (closed) {
+        // closed meanwhile, the reporter thread may be gone already
+        reportQueued();
+      }
+      return;
+    }
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        while (!queue.offer(span)) {
+          if (queue.poll() != null) {
+            dropped.incrementAndGet();
+          }
+        }
+        break;
+      case CALLER_RUNS:
+        report(span);
+        break;
+      default:
+        dropped.incrementAndGet();
+    }
+  }
+
+  long droppedSpans() {
+    return dropped.get();
+  }
+
+  /**
+   * Reports the queued spans and stops the reporter thread, waiting for it. The spans submitted
+   * afterwards, by the listeners of connections opened before a reload, are reported on the
+   * calling thread.
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      queue.put(STOP);
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    final List<Runnable> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+      // spans offered just after the stop, by submitters that did not see the reporter closed yet,
+      // are still reported
+      boolean stop = false;
+      for (Runnable span : batch) {
+        if (span == STOP) {
+          stop = true;
+        } else {
+          report(span);
+        }
+      }
+      batch.clear();
+      if (stop) {
+        reportQueued();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reports the spans left in the queue once the reporter is closed.
+   */
+  private void reportQueued() {
+    boolean stop = false;
+    for (Runnable span; (span = queue.poll()) != null; ) {
+      if (span == STOP) {
+        stop = true;
+      } else {
+        report(span);
+      }
+    }
+    if (stop && Thread.currentThread() != thread) {
+      // taken from the reporter thread, which still waits for it
+      try {
+        queue.put(STOP);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void report(Runnable span) {
+    try {
+      span.run();
+    } catch (RuntimeException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Failed to report a span.", e);
+      }
+    }
+  }
+}
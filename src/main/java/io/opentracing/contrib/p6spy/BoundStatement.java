@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.common.StatementInformation;
+
+/**
+ * A statement with the values bound to it when it completed, captured on the calling thread and
+ * rendered later by {@link StatementRenderer}, possibly on the reporter thread: the statement is
+ * reused with other values once it completed, but the values themselves are not changed.
+ */
+final class BoundStatement {
+  /** The statement, only used as the key of its masking plan once captured. */
+  final StatementInformation statementInformation;
+  final String sql;
+  /** The values by parameter index from 0, {@code null} if they cannot be read one by one. */
+  final Object[] values;
+  /** The statement as rendered by p6spy, or without values if masked, when {@link #values} is null. */
+  final String rendered;
+
+  BoundStatement(StatementInformation statementInformation, String sql, Object[] values,
+      String rendered) {
+    this.statementInformation = statementInformation;
+    this.sql = sql;
+    this.values = values;
+    this.rendered = rendered;
+  }
+}
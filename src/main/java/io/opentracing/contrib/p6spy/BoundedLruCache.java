@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A concurrent cache evicting the least recently used entries. Entries are spread over a fixed set
+ * of independently locked, access ordered, stripes, so the eviction order is approximate.
+ */
+final class BoundedLruCache<K, V> {
+  private static final int STRIPES = 16;
+
+  private final Map<K, V>[] stripes;
+
+  @SuppressWarnings("unchecked")
+  BoundedLruCache(int maxSize) {
+    final int maxSizePerStripe = Math.max(1, maxSize / STRIPES);
+    this.stripes = (Map<K, V>[]) new Map<?, ?>[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new LinkedHashMap<K, V>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+          return size() > maxSizePerStripe;
+        }
+      };
+    }
+  }
+
+  V get(K key) {
+    final Map<K, V> stripe = stripeFor(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  void put(K key, V value) {
+    final Map<K, V> stripe = stripeFor(key);
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  private Map<K, V> stripeFor(K key) {
+    final int h = key.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Description of a connection, resolved once from its {@link java.sql.DatabaseMetaData} and
+ * reused for every statement executed on it. Only the tracer and auto-commit mode change.
+ */
+final class ConnectionDescriptor {
+  final String url;
+  final String user;
+  final String catalog;
+  final ResolvedTracingOptions options;
+  /** Generation of the {@link TracingOptionsResolver} the options were resolved from. */
+  final int optionsGeneration;
+  /** Tracer of the connection, resolved on first use and again after registration changes. */
+  volatile TracerRegistry.Resolution tracer;
+  /**
+   * Auto-commit mode of the connection, read on first use and then tracked as it is set,
+   * {@code null} until read.
+   */
+  volatile Boolean autoCommit;
+
+  ConnectionDescriptor(String url, String user, String catalog, ResolvedTracingOptions options,
+      int optionsGeneration) {
+    this.url = url;
+    this.user = user;
+    this.catalog = catalog;
+    this.options = options;
+    this.optionsGeneration = optionsGeneration;
+  }
+
+  /**
+   * Returns a copy of the descriptor with options resolved again.
+   */
+  ConnectionDescriptor withOptions(ResolvedTracingOptions options, int optionsGeneration) {
+    final ConnectionDescriptor descriptor =
+        new ConnectionDescriptor(url, user, catalog, options, optionsGeneration);
+    descriptor.tracer = tracer;
+    descriptor.autoCommit = autoCommit;
+    return descriptor;
+  }
+}
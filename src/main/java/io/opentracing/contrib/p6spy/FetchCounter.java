@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Rows read from a result set and time spent reading them, accumulated until the result set is
+ * closed.
+ */
+final class FetchCounter {
+  /** Shared by the result sets left out by the overhead governor. */
+  static final FetchCounter DISABLED = new FetchCounter(0);
+
+  /** Wall clock time at which the first row was requested. */
+  final long startMicros;
+  int rows;
+  long fetchNanos;
+  long firstRowNanos = -1;
+  boolean failed;
+
+  FetchCounter(long startMicros) {
+    this.startMicros = startMicros;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-bucketed latency histogram. Each power of two is split in {@value #SUB_BUCKETS} buckets, so
+ * that percentiles are within an eighth of their value. Counts are striped by thread to spread
+ * contention, and recording never allocates.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Latencies are capped to about 68 seconds. */
+  private static final int MAX_EXPONENT = 36;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+  private static final int STRIPES = 4;
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+  private final AtomicLong max = new AtomicLong();
+
+  LatencyHistogram() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+  }
+
+  void record(long nanos) {
+    stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucket(nanos));
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) {
+      current = max.get();
+    }
+  }
+
+  long count() {
+    long count = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        count += stripe.get(i);
+      }
+    }
+    return count;
+  }
+
+  long maxNanos() {
+    return max.get();
+  }
+
+  /**
+   * Returns the middle of the bucket holding the given percentile, 0 if nothing was recorded.
+   */
+  long percentileNanos(double percentile) {
+    final long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += stripe.get(i);
+        count += stripe.get(i);
+      }
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min((lowerBound(i) + lowerBound(i + 1) - 1) / 2, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int bucket(long nanos) {
+    final long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final long subBucket = bucket % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the time spent in the tracing listeners under a share of the time spent executing the
+ * statements, set by the {@code traceOverheadBudgetPercent} option.
+ * <p>
+ * The overhead is measured over windows of one second. Over budget, the share of the statements
+ * that are traced is halved, down to {@link #MIN_SAMPLE_RATE}, below which no span is built
+ * anymore, only metrics being recorded. Under half the budget, tracing ramps back up, by
+ * {@link #RAMP_UP_STEP} per window.
+ * <p>
+ * The listener time covers the listeners of statements, batched statements and fetched rows, and
+ * the spans reported on the reporter thread or when a pending run of statements is ended. Plans
+ * explained by the {@link StatementExplainer} are not counted: their queries run on another
+ * connection, at most once per statement fingerprint and interval.
+ */
+final class OverheadGovernor {
+  private static final Logger log = Logger.getLogger(OverheadGovernor.class.getName());
+  static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final double MIN_SAMPLE_RATE = 1.0 / 1024;
+  static final double RAMP_UP_STEP = 0.05;
+  private static final Map<String, OverheadGovernor> sharedGovernors = new HashMap<>();
+
+  private final int budgetPercent;
+  private final double budget;
+  private final StripedCounter listenerNanos = new StripedCounter();
+  private final StripedCounter databaseNanos = new StripedCounter();
+  private final AtomicLong windowStartNanos;
+  // only read and written by the thread closing a window
+  private long windowListenerNanos;
+  private long windowDatabaseNanos;
+  private volatile double sampleRate = 1;
+  private volatile boolean metricsOnly;
+
+  /**
+   * @param budgetPercent maximum time spent in the listeners, in percent of the time spent
+   *        executing the statements
+   */
+  OverheadGovernor(int budgetPercent, long nowNanos) {
+    this.budgetPercent = budgetPercent;
+    this.budget = budgetPercent / 100.0;
+    this.windowStartNanos = new AtomicLong(nowNanos);
+  }
+
+  /**
+   * Returns the governor of the p6spy configuration with the given {@code jmxPrefix}, shared by the
+   * reloads of {@code spy.properties} as long as the budget is unchanged, so that the connections
+   * opened before and after a reload keep feeding the same windows, or {@code null} if there is no
+   * budget.
+   */
+  static OverheadGovernor publish(String jmxPrefix, int budgetPercent) {
+    final String key = jmxPrefix != null ? jmxPrefix : "";
+    synchronized (sharedGovernors) {
+      if (budgetPercent <= 0) {
+        sharedGovernors.remove(key);
+        return null;
+      }
+      final OverheadGovernor current = sharedGovernors.get(key);
+      if (current != null && current.budgetPercent == budgetPercent) {
+        return current;
+      }
+      final OverheadGovernor governor = new OverheadGovernor(budgetPercent, System.nanoTime());
+      sharedGovernors.put(key, governor);
+      return governor;
+    }
+  }
+
+  /**
+   * Returns whether a statement may be traced.
+   */
+  boolean sample() {
+    if (metricsOnly) {
+      return false;
+    }
+    final double rate = sampleRate;
+    return rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
+  void recordListener(long nanos) {
+    listenerNanos.add(nanos);
+  }
+
+  /**
+   * Records the execution time of a statement, and adjusts the sampling once a window ends.
+   */
+  void recordStatement(long timeElapsedNanos, long nowNanos) {
+    databaseNanos.add(timeElapsedNanos);
+    final long windowStart = windowStartNanos.get();
+    if (nowNanos - windowStart >= WINDOW_NANOS
+        && windowStartNanos.compareAndSet(windowStart, nowNanos)) {
+      adjust();
+    }
+  }
+
+  double sampleRate() {
+    return metricsOnly ? 0 : sampleRate;
+  }
+
+  private void adjust() {
+    final long listener = listenerNanos.sum();
+    final long database = databaseNanos.sum();
+    final long windowListener = listener - windowListenerNanos;
+    final long windowDatabase = database - windowDatabaseNanos;
+    windowListenerNanos = listener;
+    windowDatabaseNanos = database;
+    if (windowDatabase <= 0) {
+      return;
+    }
+
+    final double overhead = (double) windowListener / windowDatabase;
+    if (overhead > budget) {
+      if (metricsOnly) {
+        return;
+      }
+      if (sampleRate <= MIN_SAMPLE_RATE) {
+        metricsOnly = true;
+        if(log.isLoggable(Level.WARNING)) {
+          log.log(Level.WARNING, "Tracing overhead over budget, only recording metrics.");
+        }
+      } else {
+        sampleRate = Math.max(MIN_SAMPLE_RATE, sampleRate / 2);
+      }
+    } else if (overhead < budget / 2) {
+      if (metricsOnly) {
+        metricsOnly = false;
+      } else if (sampleRate < 1) {
+        sampleRate = Math.min(1, sampleRate + RAMP_UP_STEP);
+      }
+    }
+  }
+}
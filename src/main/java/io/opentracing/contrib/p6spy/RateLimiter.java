@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token bucket, implemented as a generic cell rate algorithm over a single atomic
+ * timestamp. Rejections only read the timestamp, so a saturated limiter does not bounce its cache
+ * line between cores.
+ *
+ * <p>At high rates, threads take permits from the bucket in batches, keeping the ones they do not
+ * use yet in pools striped by thread, so that the timestamp is updated once per batch rather than
+ * once per statement. The pools hold at most a sixteenth of the rate, which is let through on top
+ * of the burst. The permits of a batch lapse once the interval they were taken for has elapsed, so
+ * that a pool left unused does not add to a later burst.
+ */
+final class RateLimiter {
+  private static final long ONE_SECOND_NANOS = 1000000000L;
+  private static final int STRIPES = 16;
+  private static final int PADDING = 8;
+
+  final long permitsPerSecond;
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final AtomicLong theoreticalArrivalNanos;
+  private final long batchSize;
+  private final long batchNanos;
+  /**
+   * Permits taken from the bucket and not used yet, followed by the time at which they lapse, or
+   * {@code null} when taken one at a time.
+   */
+  private final AtomicLongArray pools;
+
+  /**
+   * @param permitsPerSecond sustained rate, which is also the largest burst that is let through
+   */
+  RateLimiter(long permitsPerSecond) {
+    this(permitsPerSecond, System.nanoTime());
+  }
+
+  RateLimiter(long permitsPerSecond, long nowNanos) {
+    this.permitsPerSecond = permitsPerSecond;
+    this.intervalNanos = Math.max(1, ONE_SECOND_NANOS / permitsPerSecond);
+    this.toleranceNanos = ONE_SECOND_NANOS - intervalNanos;
+    this.theoreticalArrivalNanos = new AtomicLong(nowNanos);
+    this.batchSize = Math.max(1, permitsPerSecond / (STRIPES * 16));
+    this.batchNanos = batchSize * intervalNanos;
+    this.pools = batchSize > 1 ? new AtomicLongArray(STRIPES * PADDING) : null;
+  }
+
+  boolean tryAcquire() {
+    return tryAcquire(System.nanoTime());
+  }
+
+  boolean tryAcquire(long now) {
+    if (pools == null) {
+      return acquire(1, now);
+    }
+    final int pool = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    long available;
+    while ((available = pools.get(pool)) > 0) {
+      final boolean lapsed = now - pools.get(pool + 1) >= 0;
+      if (pools.compareAndSet(pool, available, lapsed ? 0 : available - 1) && !lapsed) {
+        return true;
+      }
+    }
+    if (acquire(batchSize, now)) {
+      pools.set(pool + 1, now + batchNanos);
+      pools.addAndGet(pool, batchSize - 1);
+      return true;
+    }
+    // the bucket may still hold less than a batch
+    return acquire(1, now);
+  }
+
+  /**
+   * Takes all the permits from the bucket, or none.
+   */
+  private boolean acquire(long permits, long now) {
+    final long cost = permits * intervalNanos;
+    while (true) {
+      final long arrival = theoreticalArrivalNanos.get();
+      final long next = (arrival - now > 0 ? arrival : now) + cost;
+      if (next - now > toleranceNanos + intervalNanos) {
+        return false;
+      }
+      if (theoreticalArrivalNanos.compareAndSet(arrival, next)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracing options of one jdbc url, resolved once from the url itself and the defaults of
+ * {@code spy.properties}.
+ */
+final class ResolvedTracingOptions {
+  final String peerService;
+  final String dbType;
+  final boolean traceWithActiveSpanOnly;
+  final boolean traceWithStatementValues;
+  final double traceSampleRate;
+  final long traceMaxSpansPerSecond;
+  final long traceSlowerThanMillis;
+  /** {@link #traceSlowerThanMillis} in nanoseconds, the unit of p6spy's elapsed times. */
+  final long traceSlowerThanNanos;
+  final boolean traceStatementFingerprint;
+  final int traceMaxStatementLength;
+  final int traceMaxBatchValues;
+  final boolean traceResultSetFetch;
+  final boolean traceTransactions;
+  final int traceNPlusOneThreshold;
+  final boolean traceCompressStatements;
+  /** Masking of the statement values, {@code null} to render them all. */
+  final StatementRedactor redactor;
+  /**
+   * Sampling state, shared by all the connections to the url. Its rate limiter is shared with the
+   * profile, or the defaults, the options are derived from, unless the url sets its own
+   * {@link #traceMaxSpansPerSecond}.
+   */
+  final StatementSampler sampler;
+
+  private ResolvedTracingOptions(Builder builder) {
+    this.peerService = builder.peerService;
+    this.dbType = builder.dbType;
+    this.traceWithActiveSpanOnly = builder.traceWithActiveSpanOnly;
+    this.traceWithStatementValues = builder.traceWithStatementValues;
+    this.traceSampleRate = builder.traceSampleRate;
+    this.traceMaxSpansPerSecond = builder.traceMaxSpansPerSecond;
+    this.traceSlowerThanMillis = builder.traceSlowerThanMillis;
+    this.traceSlowerThanNanos = TimeUnit.MILLISECONDS.toNanos(traceSlowerThanMillis);
+    this.traceStatementFingerprint = builder.traceStatementFingerprint;
+    this.traceMaxStatementLength = builder.traceMaxStatementLength;
+    this.traceMaxBatchValues = builder.traceMaxBatchValues;
+    this.traceResultSetFetch = builder.traceResultSetFetch;
+    this.traceTransactions = builder.traceTransactions;
+    this.traceNPlusOneThreshold = builder.traceNPlusOneThreshold;
+    this.traceCompressStatements = builder.traceCompressStatements;
+    this.redactor = builder.redactor;
+    final RateLimiter rateLimiter = builder.rateLimiter;
+    this.sampler = StatementSampler.of(traceSampleRate, traceMaxSpansPerSecond <= 0 ? null
+        : rateLimiter != null && rateLimiter.permitsPerSecond == traceMaxSpansPerSecond ? rateLimiter
+            : new RateLimiter(traceMaxSpansPerSecond));
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns a builder initialized with these options, to be overridden by the options of a url.
+   */
+  Builder toBuilder() {
+    return new Builder()
+        .peerService(peerService)
+        .dbType(dbType)
+        .traceWithActiveSpanOnly(traceWithActiveSpanOnly)
+        .traceWithStatementValues(traceWithStatementValues)
+        .traceSampleRate(traceSampleRate)
+        .traceMaxSpansPerSecond(traceMaxSpansPerSecond)
+        .traceSlowerThanMillis(traceSlowerThanMillis)
+        .traceStatementFingerprint(traceStatementFingerprint)
+        .traceMaxStatementLength(traceMaxStatementLength)
+        .traceMaxBatchValues(traceMaxBatchValues)
+        .traceResultSetFetch(traceResultSetFetch)
+        .traceTransactions(traceTransactions)
+        .traceNPlusOneThreshold(traceNPlusOneThreshold)
+        .traceCompressStatements(traceCompressStatements)
+        .redactor(redactor)
+        .rateLimiter(sampler.rateLimiter);
+  }
+
+  static final class Builder {
+    private String peerService;
+    private String dbType;
+    private boolean traceWithActiveSpanOnly;
+    private boolean traceWithStatementValues;
+    private double traceSampleRate = 1.0;
+    private long traceMaxSpansPerSecond;
+    private long traceSlowerThanMillis;
+    private boolean traceStatementFingerprint;
+    private int traceMaxStatementLength;
+    private int traceMaxBatchValues;
+    private boolean traceResultSetFetch;
+    private boolean traceTransactions;
+    private int traceNPlusOneThreshold;
+    private boolean traceCompressStatements;
+    private StatementRedactor redactor;
+    private RateLimiter rateLimiter;
+
+    private Builder() {
+    }
+
+    Builder peerService(String peerService) {
+      this.peerService = peerService;
+      return this;
+    }
+
+    Builder dbType(String dbType) {
+      this.dbType = dbType;
+      return this;
+    }
+
+    Builder traceWithActiveSpanOnly(boolean traceWithActiveSpanOnly) {
+      this.traceWithActiveSpanOnly = traceWithActiveSpanOnly;
+      return this;
+    }
+
+    Builder traceWithStatementValues(boolean traceWithStatementValues) {
+      this.traceWithStatementValues = traceWithStatementValues;
+      return this;
+    }
+
+    Builder traceSampleRate(double traceSampleRate) {
+      this.traceSampleRate = traceSampleRate;
+      return this;
+    }
+
+    Builder traceMaxSpansPerSecond(long traceMaxSpansPerSecond) {
+      this.traceMaxSpansPerSecond = traceMaxSpansPerSecond;
+      return this;
+    }
+
+    Builder traceSlowerThanMillis(long traceSlowerThanMillis) {
+      this.traceSlowerThanMillis = traceSlowerThanMillis;
+      return this;
+    }
+
+    Builder traceStatementFingerprint(boolean traceStatementFingerprint) {
+      this.traceStatementFingerprint = traceStatementFingerprint;
+      return this;
+    }
+
+    Builder traceMaxStatementLength(int traceMaxStatementLength) {
+      this.traceMaxStatementLength = traceMaxStatementLength;
+      return this;
+    }
+
+    Builder traceMaxBatchValues(int traceMaxBatchValues) {
+      this.traceMaxBatchValues = traceMaxBatchValues;
+      return this;
+    }
+
+    Builder traceResultSetFetch(boolean traceResultSetFetch) {
+      this.traceResultSetFetch = traceResultSetFetch;
+      return this;
+    }
+
+    Builder traceTransactions(boolean traceTransactions) {
+      this.traceTransactions = traceTransactions;
+      return this;
+    }
+
+    Builder traceNPlusOneThreshold(int traceNPlusOneThreshold) {
+      this.traceNPlusOneThreshold = traceNPlusOneThreshold;
+      return this;
+    }
+
+    Builder traceCompressStatements(boolean traceCompressStatements) {
+      this.traceCompressStatements = traceCompressStatements;
+      return this;
+    }
+
+    Builder redactor(StatementRedactor redactor) {
+      this.redactor = redactor;
+      return this;
+    }
+
+    /**
+     * Sets the rate limiter to share, if it allows {@code traceMaxSpansPerSecond}, instead of
+     * creating one.
+     */
+    Builder rateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    ResolvedTracingOptions build() {
+      return new ResolvedTracingOptions(this);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Normalized form of a SQL statement, where literals are replaced with placeholders, along with a
+ * stable hash of it.
+ */
+final class SqlFingerprint {
+  final String normalizedSql;
+  final String fingerprint;
+  /** The hash the {@link #fingerprint} is the hexadecimal form of. */
+  final long hash;
+
+  SqlFingerprint(String normalizedSql, long hash) {
+    this.normalizedSql = normalizedSql;
+    this.hash = hash;
+    final String hex = Long.toHexString(hash);
+    this.fingerprint = "0000000000000000".substring(hex.length()) + hex;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Computes the {@link SqlFingerprint} of statements, caching the most recently used ones unless
+ * their SQL is longer than {@link #MAX_CACHED_SQL_LENGTH}, so that the cache does not keep large
+ * generated statements alive.
+ *
+ * <p>Normalization replaces string and numeric literals with {@code ?}, collapses lists of
+ * placeholders, such as {@code IN (?, ?, ?)} or multi-row {@code VALUES (?, ?), (?, ?)}, into a
+ * single {@code (?)}, and collapses whitespace. Comments are dropped, as they often carry details
+ * of the request, such as trace ids, and quoted identifiers are left untouched.
+ */
+final class SqlFingerprinter {
+  private static final int MAX_CACHED_STATEMENTS = 2048;
+  static final int MAX_CACHED_SQL_LENGTH = 4096;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final BoundedLruCache<String, SqlFingerprint> fingerprints =
+      new BoundedLruCache<>(MAX_CACHED_STATEMENTS);
+
+  SqlFingerprint fingerprint(String sql) {
+    if (sql.length() > MAX_CACHED_SQL_LENGTH) {
+      final String normalizedSql = normalize(sql);
+      return new SqlFingerprint(normalizedSql, hash(normalizedSql));
+    }
+    SqlFingerprint fingerprint = fingerprints.get(sql);
+    if (fingerprint == null) {
+      final String normalizedSql = normalize(sql);
+      fingerprint = new SqlFingerprint(normalizedSql, hash(normalizedSql));
+      fingerprints.put(sql, fingerprint);
+    }
+    return fingerprint;
+  }
+
+  static String normalize(String sql) {
+    return collapsePlaceholderLists(replaceLiterals(sql));
+  }
+
+  private static String replaceLiterals(String sql) {
+    final StringBuilder normalized = new StringBuilder(sql.length());
+    final int length = sql.length();
+    int i = 0;
+    while (i < length) {
+      final char c = sql.charAt(i);
+      if (c == '\'') {
+        i = skipQuoted(sql, i, '\'');
+        normalized.append('?');
+      } else if (c == '"' || c == '`') {
+        final int end = skipQuoted(sql, i, c);
+        normalized.append(sql, i, end);
+        i = end;
+      } else if (Character.isWhitespace(c) || isCommentStart(sql, i)) {
+        i = skipWhitespaceAndComments(sql, i);
+        if (normalized.length() > 0 && i < length) {
+          normalized.append(' ');
+        }
+      } else if (isDigit(c) && !isIdentifierPart(sql, i - 1)) {
+        while (i < length && (isIdentifierChar(sql.charAt(i)) || sql.charAt(i) == '.')) {
+          i++;
+        }
+        normalized.append('?');
+      } else if (isIdentifierChar(c)) {
+        while (i < length && isIdentifierChar(sql.charAt(i))) {
+          normalized.append(sql.charAt(i++));
+        }
+      } else {
+        normalized.append(c);
+        i++;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Rewrites {@code (?, ?, ?)} as {@code (?)}, and then {@code (?), (?)} as {@code (?)}.
+   */
+  private static String collapsePlaceholderLists(String sql) {
+    if (sql.indexOf('?') < 0) {
+      return sql;
+    }
+    final StringBuilder collapsed = new StringBuilder(sql.length());
+    final int length = sql.length();
+    int i = 0;
+    while (i < length) {
+      final int end = placeholderListEnd(sql, i);
+      if (end < 0) {
+        collapsed.append(sql.charAt(i++));
+        continue;
+      }
+      collapsed.append("(?)");
+      i = end;
+      // following lists separated by commas are rows of the same multi-row VALUES
+      while (true) {
+        int next = i;
+        while (next < length && sql.charAt(next) == ' ') {
+          next++;
+        }
+        if (next >= length || sql.charAt(next) != ',') {
+          break;
+        }
+        next++;
+        while (next < length && sql.charAt(next) == ' ') {
+          next++;
+        }
+        final int nextEnd = placeholderListEnd(sql, next);
+        if (nextEnd < 0) {
+          break;
+        }
+        i = nextEnd;
+      }
+    }
+    return collapsed.toString();
+  }
+
+  /**
+   * Returns the index following a {@code (?, ?)} list starting at {@code start}, or -1.
+   */
+  private static int placeholderListEnd(String sql, int start) {
+    if (sql.charAt(start) != '(') {
+      return -1;
+    }
+    boolean placeholder = false;
+    for (int i = start + 1; i < sql.length(); i++) {
+      final char c = sql.charAt(i);
+      if (c == ')') {
+        return placeholder ? i + 1 : -1;
+      } else if (c == '?') {
+        placeholder = true;
+      } else if (c != ',' && c != ' ') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static int skipQuoted(String sql, int start, char quote) {
+    int i = start + 1;
+    while (i < sql.length()) {
+      if (sql.charAt(i) == quote) {
+        // a doubled quote is an escaped quote
+        if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+          i += 2;
+          continue;
+        }
+        return i + 1;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isCommentStart(String sql, int index) {
+    return sql.startsWith("--", index) || sql.startsWith("/*", index);
+  }
+
+  private static int skipWhitespaceAndComments(String sql, int start) {
+    int i = start;
+    while (i < sql.length()) {
+      if (Character.isWhitespace(sql.charAt(i))) {
+        i++;
+      } else if (sql.startsWith("--", i)) {
+        final int end = sql.indexOf('\n', i);
+        i = end < 0 ? sql.length() : end + 1;
+      } else if (sql.startsWith("/*", i)) {
+        final int end = sql.indexOf("*/", i + 2);
+        i = end < 0 ? sql.length() : end + 2;
+      } else {
+        break;
+      }
+    }
+    return i;
+  }
+
+  private static boolean isIdentifierPart(String sql, int index) {
+    return index >= 0 && isIdentifierChar(sql.charAt(index));
+  }
+
+  private static boolean isIdentifierChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static long hash(String normalizedSql) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < normalizedSql.length(); i++) {
+      hash ^= normalizedSql.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import io.opentracing.References;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Explains the plan of slow queries on a background thread and reports the plan on an
+ * {@code Explain} span following the span of the statement. A query is explained at most once per
+ * interval, identified by its fingerprint.
+ *
+ * <p>Each query is explained on its own read-only connection, opened from the driver of the
+ * database rather than from the data source of the application, so that explanations neither
+ * take connections from its pool nor are traced, and closed once the plan is read. The thread
+ * stops once idle, when the explainer is replaced by a reload of {@code spy.properties}, and when
+ * the JVM shuts down.
+ */
+final class StatementExplainer {
+  private static final Logger log = Logger.getLogger(StatementExplainer.class.getName());
+  static final String DB_PLAN = "db.plan";
+  static final int MAX_PLAN_LENGTH = 4096;
+  private static final int MAX_FINGERPRINTS = 1024;
+  private static final int QUEUE_CAPACITY = 64;
+  private static final int QUERY_TIMEOUT_SECONDS = 10;
+  private static final long IDLE_SECONDS = 60;
+  private static final String P6SPY_URL_PREFIX = "jdbc:p6spy:";
+  /** Explainers in use, by {@code jmxPrefix} of their p6spy configuration. */
+  private static final Map<String, StatementExplainer> sharedExplainers = new HashMap<>();
+  private static boolean shutdownHookAdded;
+
+  private final long slowerThanNanos;
+  private final long intervalNanos;
+  /** The user explaining the queries, {@code null} for the user of the connection. */
+  private final String user;
+  private final String password;
+  /** When each query was last queued to be explained, by fingerprint. */
+  private final BoundedLruCache<String, Long> explainedNanos =
+      new BoundedLruCache<>(MAX_FINGERPRINTS);
+  private final ThreadPoolExecutor executor;
+  private volatile boolean closed;
+
+  StatementExplainer(long slowerThanNanos, long intervalNanos) {
+    this(slowerThanNanos, intervalNanos, null, null);
+  }
+
+  StatementExplainer(long slowerThanNanos, long intervalNanos, String user, String password) {
+    this.slowerThanNanos = slowerThanNanos;
+    this.intervalNanos = intervalNanos;
+    this.user = user;
+    this.password = password;
+    // queries explained while the queue is full are dropped
+    this.executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "p6spy-tracing-explainer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the explainer of the p6spy configuration with the given {@code jmxPrefix}, shared by
+   * the reloads of {@code spy.properties}: the explainer in use is kept if its settings did not
+   * change, and closed otherwise.
+   *
+   * @param slowerThanNanos the duration from which queries are explained, 0 not to explain them,
+   *     which returns {@code null}
+   * @param user the user explaining the queries, {@code null} for the user of the connection
+   * @param password the password of {@code user}
+   */
+  static StatementExplainer publish(String jmxPrefix, long slowerThanNanos, long intervalNanos,
+      String user, String password) {
+    final String key = jmxPrefix != null ? jmxPrefix : "";
+    final StatementExplainer explainer;
+    final StatementExplainer previous;
+    synchronized (sharedExplainers) {
+      final StatementExplainer current = sharedExplainers.get(key);
+      if (current != null && current.slowerThanNanos == slowerThanNanos
+          && current.intervalNanos == intervalNanos && equal(current.user, user)
+          && equal(current.password, password)) {
+        return current;
+      }
+      explainer = slowerThanNanos > 0
+          ? new StatementExplainer(slowerThanNanos, intervalNanos, user, password) : null;
+      previous = explainer != null ? sharedExplainers.put(key, explainer) : sharedExplainers.remove(key);
+      if (explainer != null && !shutdownHookAdded) {
+        shutdownHookAdded = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+          @Override public void run() {
+            closeAll();
+          }
+        }, "p6spy-tracing-explainer-shutdown"));
+      }
+    }
+    if (previous != null) {
+      previous.close();
+    }
+    return explainer;
+  }
+
+  /**
+   * Closes the explainers in use, when the JVM shuts down.
+   */
+  static void closeAll() {
+    final List<StatementExplainer> explainers;
+    synchronized (sharedExplainers) {
+      explainers = new ArrayList<>(sharedExplainers.values());
+      sharedExplainers.clear();
+    }
+    for (StatementExplainer explainer : explainers) {
+      explainer.close();
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  long slowerThanNanos() {
+    return slowerThanNanos;
+  }
+
+  /**
+   * Returns the statement explaining the plan of a query in the dialect of the database,
+   * {@code null} if the statement is not a query or the database is not supported.
+   */
+  static String explainStatement(String dbType, String sql) {
+    if (dbType == null || sql == null || !isQuery(sql)) {
+      return null;
+    }
+    switch (dbType.toLowerCase(Locale.ROOT)) {
+      case "hsqldb":
+        return "EXPLAIN PLAN FOR " + sql;
+      case "h2":
+      case "mysql":
+      case "mariadb":
+      case "postgresql":
+        return "EXPLAIN " + sql;
+      case "sqlite":
+        return "EXPLAIN QUERY PLAN " + sql;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns whether the database explains a query with placeholders without values bound to them,
+   * HSQLDB not accepting values when explaining. PostgreSQL and MySQL, among others, need them.
+   */
+  static boolean explainsPlaceholders(String dbType) {
+    return "hsqldb".equalsIgnoreCase(dbType);
+  }
+
+  /**
+   * Returns whether the values can be bound again on the connection of the explainer: only the
+   * plain types every driver supports, as other values may belong to the connection they were
+   * created on, such as blobs, or be set with a specific type.
+   */
+  static boolean bindable(Object[] values) {
+    for (Object value : values) {
+      if (value != null && !(value instanceof String) && !(value instanceof Number)
+          && !(value instanceof Boolean) && !(value instanceof byte[])
+          && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time)
+          && !(value instanceof java.sql.Timestamp)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isQuery(String sql) {
+    int start = 0;
+    while (start < sql.length()
+        && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '(')) {
+      start++;
+    }
+    return sql.regionMatches(true, start, "SELECT", 0, 6)
+        || sql.regionMatches(true, start, "WITH", 0, 4);
+  }
+
+  /**
+   * Returns whether the query was queued to be explained within the interval.
+   */
+  boolean explainedRecently(String fingerprint) {
+    final Long explained = explainedNanos.get(fingerprint);
+    return explained != null && System.nanoTime() - explained < intervalNanos;
+  }
+
+  /**
+   * Queues the explanation of a query unless it was queued within the interval, or the queue is
+   * full.
+   *
+   * @param statementContext the context of the span of the explained statement
+   */
+  void submit(final Explain explain, SpanContext statementContext) {
+    if (closed) {
+      return;
+    }
+    final long nowNanos = System.nanoTime();
+    synchronized (this) {
+      final Long explained = explainedNanos.get(explain.fingerprint);
+      if (explained != null && nowNanos - explained < intervalNanos) {
+        return;
+      }
+      explainedNanos.put(explain.fingerprint, nowNanos);
+    }
+    explain.statementContext = statementContext;
+    try {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          explain(explain);
+        }
+      });
+    } catch (RuntimeException e) {
+      // closed meanwhile
+    }
+  }
+
+  /**
+   * Stops the explainer thread, waiting for the query being explained, if any. The queries still
+   * queued are not explained.
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    executor.getQueue().clear();
+    executor.shutdown();
+    try {
+      executor.awaitTermination(QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void explain(Explain explain) {
+    final String plan;
+    try (Connection connection = connect(explain)) {
+      plan = readPlan(connection, explain);
+    } catch (SQLException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.warning("Failed to explain the query " + explain.fingerprint + ": " + e.getMessage());
+      }
+      return;
+    } catch (RuntimeException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Failed to report the plan of a query.", e);
+      }
+      return;
+    }
+    final Span span = explain.tracer.buildSpan("Explain")
+        .addReference(References.FOLLOWS_FROM, explain.statementContext)
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+        .start();
+    Tags.COMPONENT.set(span, "java-p6spy");
+    Tags.DB_TYPE.set(span, explain.dbType);
+    span.setTag(TracingP6SpyListener.DB_STATEMENT_FINGERPRINT, explain.fingerprint);
+    span.setTag(DB_PLAN, StatementRenderer.truncate(plan, MAX_PLAN_LENGTH));
+    span.finish();
+  }
+
+  /**
+   * Opens a read-only connection from the driver of the database, never from p6spy: the url of
+   * the connection is the one of the database, the p6spy prefix being stripped if present.
+   */
+  private Connection connect(Explain explain) throws SQLException {
+    final String url = explain.url != null && explain.url.startsWith(P6SPY_URL_PREFIX)
+        ? "jdbc:" + explain.url.substring(P6SPY_URL_PREFIX.length()) : explain.url;
+    if (url == null) {
+      throw new SQLException("The url of the database is not known");
+    }
+    final Driver driver = explain.driver != null && !isP6Spy(explain.driver)
+        ? explain.driver : DriverManager.getDriver(url);
+    if (isP6Spy(driver)) {
+      throw new SQLException("No driver other than p6spy accepts " + url);
+    }
+    final Properties properties = new Properties();
+    final String user = this.user != null ? this.user : explain.user;
+    if (user != null) {
+      properties.setProperty("user", user);
+    }
+    if (this.user != null && password != null) {
+      properties.setProperty("password", password);
+    }
+    final Connection connection = driver.connect(url, properties);
+    if (connection == null) {
+      throw new SQLException("No connection can be opened to " + url);
+    }
+    try {
+      connection.setReadOnly(true);
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+    return connection;
+  }
+
+  private static boolean isP6Spy(Driver driver) {
+    return driver.getClass().getName().startsWith("com.p6spy.");
+  }
+
+  /**
+   * Reads the plan of the query, binding its values again on a prepared statement when they are
+   * known, and running its SQL as is otherwise.
+   */
+  private static String readPlan(Connection connection, Explain explain) throws SQLException {
+    if (explain.values == null) {
+      try (Statement statement = connection.createStatement()) {
+        statement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+        return readPlan(statement.executeQuery(explain.explainSql));
+      }
+    }
+    try (PreparedStatement statement = connection.prepareStatement(explain.explainSql)) {
+      statement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+      for (int i = 0; i < explain.values.length; i++) {
+        if (explain.values[i] == null) {
+          statement.setNull(i + 1, Types.NULL);
+        } else {
+          statement.setObject(i + 1, explain.values[i]);
+        }
+      }
+      return readPlan(statement.executeQuery());
+    }
+  }
+
+  private static String readPlan(ResultSet resultSet) throws SQLException {
+    final StringBuilder plan = new StringBuilder();
+    try {
+      final int columns = resultSet.getMetaData().getColumnCount();
+      while (resultSet.next() && plan.length() <= MAX_PLAN_LENGTH) {
+        for (int column = 1; column <= columns; column++) {
+          if (column > 1) {
+            plan.append(' ');
+          }
+          plan.append(resultSet.getString(column));
+        }
+        plan.append('\n');
+      }
+    } finally {
+      resultSet.close();
+    }
+    return plan.toString().trim();
+  }
+
+  /**
+   * A query to explain, with the values to bind again to its placeholders, {@code null} to run
+   * its SQL as is, and what is needed to open a connection to its database: its driver, url and
+   * user. Passwords are not known to p6spy, the connections of a user requiring one can only be
+   * opened with the {@code traceExplainUser} and {@code traceExplainPassword} options.
+   */
+  static final class Explain {
+    final Tracer tracer;
+    final String dbType;
+    final String fingerprint;
+    final String explainSql;
+    final Object[] values;
+    final Driver driver;
+    final String url;
+    final String user;
+    SpanContext statementContext;
+
+    Explain(Tracer tracer, String dbType, String fingerprint, String explainSql, Object[] values,
+        Driver driver, String url, String user) {
+      this.tracer = tracer;
+      this.dbType = dbType;
+      this.fingerprint = fingerprint;
+      this.explainSql = explainSql;
+      this.values = values;
+      this.driver = driver;
+      this.url = url;
+      this.user = user;
+    }
+  }
+}
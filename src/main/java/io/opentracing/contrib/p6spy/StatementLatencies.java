@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of the statements executed, by peer service and statement fingerprint, each
+ * registered as a {@link StatementLatencyMBean}. Statements are recorded whether they are traced
+ * or not.
+ *
+ * <p>The number of histograms is bounded: once full, the histogram updated least recently is
+ * evicted for a new statement, provided it was not updated for a while, and the new statement is
+ * left out otherwise. Both are counted by the {@link StatementLatenciesMBean}.
+ */
+final class StatementLatencies implements StatementLatenciesMBean {
+  private static final Logger log = Logger.getLogger(StatementLatencies.class.getName());
+  static final int MAX_HISTOGRAMS = 256;
+  static final long DEFAULT_MIN_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+  /** Latencies in use, by {@code jmxPrefix} of their p6spy configuration. */
+  private static final Map<String, StatementLatencies> sharedLatencies = new HashMap<>();
+
+  private final String jmxPrefix;
+  /** How long a histogram must not have been updated to be evicted. */
+  private final long minIdleNanos;
+  private final ConcurrentMap<String, ConcurrentMap<String, StatementLatency>> latencies =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger histograms = new AtomicInteger();
+  private final AtomicLong droppedStatements = new AtomicLong();
+  private final AtomicLong evictedHistograms = new AtomicLong();
+  /** No histogram is idle enough to be evicted until then. */
+  private volatile long noEvictionUntilNanos = System.nanoTime();
+  private final ObjectName name;
+
+  StatementLatencies(String jmxPrefix) {
+    this(jmxPrefix, DEFAULT_MIN_IDLE_NANOS);
+  }
+
+  StatementLatencies(String jmxPrefix, long minIdleNanos) {
+    this.jmxPrefix = jmxPrefix;
+    this.minIdleNanos = minIdleNanos;
+    this.name = objectName(jmxPrefix, StatementLatencies.class);
+    if (name != null) {
+      TracingMBeans.register(this, name);
+    }
+  }
+
+  /**
+   * Returns the histograms of the p6spy configuration with the given {@code jmxPrefix}, shared by
+   * the reloads of {@code spy.properties}, or {@code null} if they are disabled, in which case the
+   * histograms in use are closed.
+   */
+  static StatementLatencies publish(String jmxPrefix, boolean enabled) {
+    final String key = jmxPrefix != null ? jmxPrefix : "";
+    final StatementLatencies previous;
+    synchronized (sharedLatencies) {
+      final StatementLatencies current = sharedLatencies.get(key);
+      if (enabled) {
+        if (current == null) {
+          final StatementLatencies latencies = new StatementLatencies(jmxPrefix);
+          sharedLatencies.put(key, latencies);
+          return latencies;
+        }
+        return current;
+      }
+      previous = sharedLatencies.remove(key);
+    }
+    if (previous != null) {
+      previous.close();
+    }
+    return null;
+  }
+
+  void record(String peerService, SqlFingerprint fingerprint, long timeElapsedNanos) {
+    final StatementLatency latency = latency(peerService != null ? peerService : "", fingerprint);
+    if (latency != null) {
+      latency.record(timeElapsedNanos);
+    }
+  }
+
+  @Override public int getHistograms() {
+    return histograms.get();
+  }
+
+  @Override public long getDroppedStatements() {
+    return droppedStatements.get();
+  }
+
+  @Override public long getEvictedHistograms() {
+    return evictedHistograms.get();
+  }
+
+  /**
+   * Unregisters the MBeans of the histograms. Statements recorded afterwards, by the listeners of
+   * connections opened before a reload, still update the histograms, which are no longer exposed.
+   */
+  void close() {
+    for (ConcurrentMap<String, StatementLatency> byFingerprint : latencies.values()) {
+      for (StatementLatency latency : byFingerprint.values()) {
+        unregister(latency);
+      }
+    }
+    if (name != null) {
+      TracingMBeans.unregister(name);
+    }
+  }
+
+  private StatementLatency latency(String peerService, SqlFingerprint fingerprint) {
+    ConcurrentMap<String, StatementLatency> byFingerprint = latencies.get(peerService);
+    if (byFingerprint == null) {
+      final ConcurrentMap<String, StatementLatency> created = new ConcurrentHashMap<>();
+      byFingerprint = latencies.putIfAbsent(peerService, created);
+      if (byFingerprint == null) {
+        byFingerprint = created;
+      }
+    }
+    StatementLatency latency = byFingerprint.get(fingerprint.fingerprint);
+    if (latency != null) {
+      return latency;
+    }
+    if (histograms.incrementAndGet() > MAX_HISTOGRAMS) {
+      histograms.decrementAndGet();
+      if (!evictIdleHistogram()) {
+        droppedStatements.incrementAndGet();
+        return null;
+      }
+      histograms.incrementAndGet();
+    }
+    latency = new StatementLatency(peerService, fingerprint, objectName(jmxPrefix,
+        StatementLatency.class, "peerService", peerService, "fingerprint", fingerprint.fingerprint));
+    final StatementLatency previous = byFingerprint.putIfAbsent(fingerprint.fingerprint, latency);
+    if (previous != null) {
+      histograms.decrementAndGet();
+      return previous;
+    }
+    if (latency.name != null) {
+      TracingMBeans.register(latency, latency.name);
+    }
+    return latency;
+  }
+
+  /**
+   * Evicts the histogram updated least recently, if it was not updated for a while, returning
+   * whether one was evicted. The histograms are scanned at most once per idle period when none
+   * can be evicted.
+   */
+  private synchronized boolean evictIdleHistogram() {
+    final long nowNanos = System.nanoTime();
+    if (nowNanos - noEvictionUntilNanos < 0) {
+      return false;
+    }
+    ConcurrentMap<String, StatementLatency> eldestMap = null;
+    StatementLatency eldest = null;
+    for (ConcurrentMap<String, StatementLatency> byFingerprint : latencies.values()) {
+      for (StatementLatency latency : byFingerprint.values()) {
+        if (eldest == null || latency.lastRecordedNanos - eldest.lastRecordedNanos < 0) {
+          eldest = latency;
+          eldestMap = byFingerprint;
+        }
+      }
+    }
+    if (eldest == null || nowNanos - eldest.lastRecordedNanos < minIdleNanos) {
+      noEvictionUntilNanos = eldest == null ? nowNanos
+          : eldest.lastRecordedNanos + minIdleNanos;
+      return false;
+    }
+    if (!eldestMap.remove(eldest.getFingerprint(), eldest)) {
+      return false;
+    }
+    histograms.decrementAndGet();
+    evictedHistograms.incrementAndGet();
+    unregister(eldest);
+    return true;
+  }
+
+  private static void unregister(StatementLatency latency) {
+    if (latency.name != null) {
+      TracingMBeans.unregister(latency.name);
+    }
+  }
+
+  private static ObjectName objectName(String jmxPrefix, Class<?> type, String... properties) {
+    try {
+      return TracingMBeans.objectName(jmxPrefix, type, properties);
+    } catch (MalformedObjectNameException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Failed to name the MBean of " + type.getSimpleName() + ".", e);
+      }
+      return null;
+    }
+  }
+}
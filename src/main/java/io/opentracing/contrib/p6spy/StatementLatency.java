@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import javax.management.ObjectName;
+
+/**
+ * Latencies of one statement of one peer service, exposed over JMX.
+ */
+final class StatementLatency implements StatementLatencyMBean {
+  private final String peerService;
+  private final SqlFingerprint fingerprint;
+  /** Name of the MBean, {@code null} if it cannot be registered. */
+  final ObjectName name;
+  final LatencyHistogram histogram = new LatencyHistogram();
+  volatile long lastRecordedNanos = System.nanoTime();
+
+  StatementLatency(String peerService, SqlFingerprint fingerprint, ObjectName name) {
+    this.peerService = peerService;
+    this.fingerprint = fingerprint;
+    this.name = name;
+  }
+
+  void record(long timeElapsedNanos) {
+    histogram.record(timeElapsedNanos);
+    lastRecordedNanos = System.nanoTime();
+  }
+
+  @Override public String getPeerService() {
+    return peerService;
+  }
+
+  @Override public String getFingerprint() {
+    return fingerprint.fingerprint;
+  }
+
+  @Override public String getStatement() {
+    return fingerprint.normalizedSql;
+  }
+
+  @Override public long getCount() {
+    return histogram.count();
+  }
+
+  @Override public double getP50Millis() {
+    return LatencyHistogram.toMillis(histogram.percentileNanos(50));
+  }
+
+  @Override public double getP99Millis() {
+    return LatencyHistogram.toMillis(histogram.percentileNanos(99));
+  }
+
+  @Override public double getMaxMillis() {
+    return LatencyHistogram.toMillis(histogram.maxNanos());
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.common.StatementInformation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Masks statement values by column name, table, parameter index or value pattern.
+ * <p>
+ * The column and table rules are compiled once per SQL into a {@link Plan} telling which
+ * parameters are masked, so that rendering a statement only looks its parameters up in the plan.
+ * Plans are also remembered per prepared statement, so that executing a statement again neither
+ * compares nor hashes its SQL.
+ * <p>
+ * The value pattern is the only rule matched per statement rather than per SQL: when set, it is
+ * matched against the raw values the plan keeps, once per value of each traced statement, on the
+ * reporter thread when spans are reported asynchronously. Leaving it unset keeps masking free of
+ * any regular expression work per statement.
+ */
+final class StatementRedactor {
+  static final String MASK = "'***'";
+  private static final int MAX_CACHED_PLANS = 1024;
+  private static final Set<String> COMPARISONS = new HashSet<>(
+      Arrays.asList("=", "<>", "!=", "<", ">", "<=", ">=", "LIKE", "IN", "NOT", "ILIKE"));
+  private static final Set<String> TABLE_KEYWORDS = new HashSet<>(
+      Arrays.asList("FROM", "JOIN", "INTO", "UPDATE"));
+
+  /** Masks every value, binary ones included, when the rules cannot be read. */
+  static final StatementRedactor MASK_ALL = new StatementRedactor(Collections.<String>emptySet(),
+      Collections.<String>emptySet(), Collections.<Integer>emptySet(), null, true);
+
+  /** Whether every value is masked, whatever the SQL and the values. */
+  private final boolean maskAll;
+  private final Set<String> columns;
+  private final Set<String> tables;
+  private final BitSet parameters;
+  private final Pattern valuePattern;
+  private final BoundedLruCache<String, Plan> plans = new BoundedLruCache<>(MAX_CACHED_PLANS);
+  private final WeakKeyCache<StatementInformation, Plan> statementPlans =
+      new WeakKeyCache<>(MAX_CACHED_PLANS);
+
+  /**
+   * @param columns names of the masked columns, case insensitive
+   * @param tables names of the tables whose statements have all their values masked, case
+   *        insensitive
+   * @param parameters indexes of the masked parameters, starting at 1 like in JDBC
+   * @param valuePattern pattern of the masked values, {@code null} for none
+   */
+  StatementRedactor(Set<String> columns, Set<String> tables, Set<Integer> parameters,
+      Pattern valuePattern) {
+    this(columns, tables, parameters, valuePattern, false);
+  }
+
+  private StatementRedactor(Set<String> columns, Set<String> tables, Set<Integer> parameters,
+      Pattern valuePattern, boolean maskAll) {
+    this.maskAll = maskAll;
+    this.columns = lowerCase(columns);
+    this.tables = lowerCase(tables);
+    this.parameters = new BitSet();
+    for (Integer parameter : parameters) {
+      if (parameter != null && parameter > 0) {
+        this.parameters.set(parameter - 1);
+      }
+    }
+    this.valuePattern = valuePattern;
+  }
+
+  /**
+   * Returns a redactor for the comma separated rules, {@code null} if there is none.
+   */
+  static StatementRedactor of(String columns, String tables, String parameters,
+      String valuePattern) {
+    final Set<Integer> indexes = new HashSet<>();
+    for (String parameter : split(parameters)) {
+      indexes.add(TracingOptionsResolver.parseInt(parameter, 0));
+    }
+    if (split(columns).isEmpty() && split(tables).isEmpty() && indexes.isEmpty()
+        && (valuePattern == null || valuePattern.isEmpty())) {
+      return null;
+    }
+    return new StatementRedactor(new HashSet<>(split(columns)), new HashSet<>(split(tables)),
+        indexes, valuePattern == null || valuePattern.isEmpty() ? null : Pattern.compile(valuePattern));
+  }
+
+  /**
+   * Returns the masking plan of the SQL, compiled the first time it is seen.
+   */
+  Plan plan(String sql) {
+    if (maskAll) {
+      return Plan.MASK_ALL;
+    }
+    Plan plan = plans.get(sql);
+    if (plan == null) {
+      plan = compile(sql);
+      plans.put(sql, plan);
+    }
+    return plan;
+  }
+
+  /**
+   * Returns the masking plan of a prepared statement, whose SQL never changes.
+   */
+  Plan plan(StatementInformation statementInformation, String sql) {
+    if (maskAll) {
+      return Plan.MASK_ALL;
+    }
+    Plan plan = statementPlans.get(statementInformation);
+    if (plan == null) {
+      plan = plan(sql);
+      statementPlans.put(statementInformation, plan);
+    }
+    return plan;
+  }
+
+  /**
+   * Returns whether a parameter value, 0 based, has to be masked.
+   *
+   * @param value the raw value, as bound to the statement. Strings are matched as they are, without
+   *     the quotes they are rendered with, binary values never, and other values by their
+   *     {@code toString()}.
+   */
+  boolean masks(Plan plan, int parameter, Object value) {
+    return maskAll || plan.maskAll || plan.masked.get(parameter)
+        || valuePattern != null && value != null && !(value instanceof byte[])
+        && valuePattern.matcher(value.toString()).find();
+  }
+
+  private Plan compile(String sql) {
+    final List<String> tokens = tokenize(sql);
+    final BitSet masked = (BitSet) parameters.clone();
+    List<String> insertColumns = Collections.emptyList();
+    int parameter = 0;
+    int valuesDepth = -1;
+    int valuesColumn = 0;
+    int depth = 0;
+    for (int i = 0; i < tokens.size(); i++) {
+      final String token = tokens.get(i);
+      final String upper = token.toUpperCase(Locale.ROOT);
+      if (TABLE_KEYWORDS.contains(upper) && i + 1 < tokens.size()) {
+        if (tables.contains(unqualified(tokens.get(i + 1)))) {
+          return Plan.MASK_ALL;
+        }
+        if ("INTO".equals(upper)) {
+          insertColumns = insertColumns(tokens, i + 2);
+        }
+      } else if ("VALUES".equals(upper)) {
+        valuesDepth = depth + 1;
+      } else if ("(".equals(token)) {
+        depth++;
+        if (depth == valuesDepth) {
+          valuesColumn = 0;
+        }
+      } else if (")".equals(token)) {
+        depth--;
+      } else if (",".equals(token) && depth == valuesDepth) {
+        valuesColumn++;
+      } else if ("?".equals(token)) {
+        final String column = valuesDepth > 0 && depth >= valuesDepth && valuesColumn < insertColumns.size()
+            ? insertColumns.get(valuesColumn) : comparedColumn(tokens, i);
+        if (column != null && columns.contains(column)) {
+          masked.set(parameter);
+        }
+        parameter++;
+      }
+    }
+    return masked.isEmpty() ? Plan.KEEP_ALL : new Plan(false, masked);
+  }
+
+  /**
+   * Returns the column compared to the placeholder at the given index, like in
+   * {@code column = ?}, {@code column IN (?, ?)} or {@code column BETWEEN ? AND ?}.
+   */
+  private static String comparedColumn(List<String> tokens, int placeholder) {
+    int i = placeholder - 1;
+    while (i >= 0) {
+      final String token = tokens.get(i).toUpperCase(Locale.ROOT);
+      if ("?".equals(token) || ",".equals(token) || "(".equals(token)
+          || COMPARISONS.contains(token) || "BETWEEN".equals(token)) {
+        i--;
+      } else if ("AND".equals(token) && i >= 2 && "?".equals(tokens.get(i - 1))
+          && "BETWEEN".equalsIgnoreCase(tokens.get(i - 2))) {
+        i -= 2;
+      } else {
+        break;
+      }
+    }
+    return i >= 0 && isIdentifier(tokens.get(i)) ? unqualified(tokens.get(i)) : null;
+  }
+
+  /**
+   * Returns the columns listed after the table of an {@code INSERT INTO table (a, b)}.
+   */
+  private static List<String> insertColumns(List<String> tokens, int start) {
+    if (start >= tokens.size() || !"(".equals(tokens.get(start))) {
+      return Collections.emptyList();
+    }
+    final List<String> columns = new ArrayList<>();
+    for (int i = start + 1; i < tokens.size() && !")".equals(tokens.get(i)); i++) {
+      if (!",".equals(tokens.get(i))) {
+        columns.add(unqualified(tokens.get(i)));
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Splits the SQL into identifiers, keywords, placeholders and symbols, leaving out literals and
+   * comments.
+   */
+  static List<String> tokenize(String sql) {
+    final List<String> tokens = new ArrayList<>();
+    int i = 0;
+    while (i < sql.length()) {
+      final char c = sql.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '\'') {
+        i = skipQuoted(sql, i, '\'');
+      } else if (c == '-' && sql.startsWith("--", i)) {
+        final int end = sql.indexOf('\n', i);
+        i = end < 0 ? sql.length() : end + 1;
+      } else if (c == '/' && sql.startsWith("/*", i)) {
+        final int end = sql.indexOf("*/", i + 2);
+        i = end < 0 ? sql.length() : end + 2;
+      } else if (c == '"' || c == '`' || Character.isLetterOrDigit(c) || c == '_') {
+        // identifiers, possibly quoted and qualified, like schema."table"
+        final int start = i;
+        while (i < sql.length()) {
+          final char d = sql.charAt(i);
+          if (d == '"' || d == '`') {
+            i = skipQuoted(sql, i, d);
+          } else if (Character.isLetterOrDigit(d) || d == '_' || d == '.' || d == '$') {
+            i++;
+          } else {
+            break;
+          }
+        }
+        tokens.add(sql.substring(start, i));
+      } else if ((c == '<' || c == '>' || c == '!') && i + 1 < sql.length()
+          && (sql.charAt(i + 1) == '=' || sql.charAt(i + 1) == '>')) {
+        tokens.add(sql.substring(i, i + 2));
+        i += 2;
+      } else {
+        tokens.add(String.valueOf(c));
+        i++;
+      }
+    }
+    return tokens;
+  }
+
+  private static int skipQuoted(String sql, int start, char quote) {
+    int i = start + 1;
+    while (i < sql.length()) {
+      if (sql.charAt(i) == quote) {
+        if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+          i += 2;
+          continue;
+        }
+        return i + 1;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isIdentifier(String token) {
+    final char c = token.charAt(0);
+    return Character.isLetter(c) || c == '_' || c == '"' || c == '`';
+  }
+
+  /**
+   * Returns the lower case name of an identifier, without its qualifier and quotes.
+   */
+  private static String unqualified(String identifier) {
+    final int dot = identifier.lastIndexOf('.');
+    String name = dot < 0 ? identifier : identifier.substring(dot + 1);
+    if (name.length() >= 2 && (name.charAt(0) == '"' || name.charAt(0) == '`')) {
+      name = name.substring(1, name.length() - 1);
+    }
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  private static Set<String> lowerCase(Set<String> names) {
+    final Set<String> lowerCase = new HashSet<>();
+    for (String name : names) {
+      lowerCase.add(name.toLowerCase(Locale.ROOT));
+    }
+    return lowerCase;
+  }
+
+  private static List<String> split(String value) {
+    if (value == null) {
+      return Collections.emptyList();
+    }
+    final List<String> values = new ArrayList<>();
+    for (String part : value.split(",")) {
+      if (!part.trim().isEmpty()) {
+        values.add(part.trim());
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Parameters of a SQL whose values are masked.
+   */
+  static final class Plan {
+    static final Plan KEEP_ALL = new Plan(false, new BitSet());
+    static final Plan MASK_ALL = new Plan(true, new BitSet());
+
+    final boolean maskAll;
+    final BitSet masked;
+
+    Plan(boolean maskAll, BitSet masked) {
+      this.maskAll = maskAll;
+      this.masked = masked;
+    }
+  }
+}
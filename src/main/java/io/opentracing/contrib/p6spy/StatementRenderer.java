@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.common.CallableStatementInformation;
+import com.p6spy.engine.common.PreparedStatementInformation;
+import com.p6spy.engine.common.StatementInformation;
+import com.p6spy.engine.common.Value;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renders statements for the {@code db.statement} tag, stopping as soon as the configured limits
+ * are reached instead of building the whole statement first.
+ */
+final class StatementRenderer {
+  private static final Logger log = Logger.getLogger(StatementRenderer.class.getName());
+  static final String TRUNCATION_MARKER = "...";
+
+  /** p6spy only exposes the bound values of prepared statements through a protected method. */
+  private static final Method GET_PARAMETER_VALUES = parameterValuesAccessor();
+
+  private StatementRenderer() {
+  }
+
+  /**
+   * @param maxLength maximum length of the rendered statement, marker included, or 0 for no limit
+   */
+  static String truncate(String sql, int maxLength) {
+    if (sql == null || maxLength <= 0 || sql.length() <= maxLength) {
+      return sql;
+    }
+    final int keep = Math.max(0, maxLength - TRUNCATION_MARKER.length());
+    return sql.substring(0, keep) + TRUNCATION_MARKER;
+  }
+
+  /**
+   * Renders the statement with its bound values, like {@link StatementInformation#getSqlWithValues()}.
+   *
+   * @param maxLength maximum length of the rendered statement, marker included, or 0 for no limit
+   * @param maxValues maximum number of values rendered, the following placeholders being left as
+   *     {@code ?}, or 0 for no limit
+   */
+  static String sqlWithValues(StatementInformation statementInformation, int maxLength,
+      int maxValues) {
+    return sqlWithValues(statementInformation, maxLength, maxValues, null);
+  }
+
+  /**
+   * @param redactor the masking of the values, {@code null} to render them all. Statements whose
+   *     values cannot be read one by one are then rendered without values.
+   */
+  static String sqlWithValues(StatementInformation statementInformation, int maxLength,
+      int maxValues, StatementRedactor redactor) {
+    return sqlWithValues(bind(statementInformation, redactor), maxLength, maxValues, redactor);
+  }
+
+  /**
+   * Captures the values bound to the statement, to render it later with
+   * {@link #sqlWithValues(BoundStatement, int, int, StatementRedactor)}. Only statements whose
+   * values cannot be read one by one are rendered now.
+   *
+   * @param redactor the masking the statement is rendered with, {@code null} if none
+   */
+  static BoundStatement bind(StatementInformation statementInformation, StatementRedactor redactor) {
+    final Map<Integer, Value> parameterValues = parameterValues(statementInformation);
+    if (parameterValues == null) {
+      return new BoundStatement(statementInformation, statementInformation.getSql(), null,
+          redactor == null ? statementInformation.getSqlWithValues() : statementInformation.getSql());
+    }
+    return new BoundStatement(statementInformation, statementInformation.getSql(),
+        copyValues(parameterValues), null);
+  }
+
+  /**
+   * Renders a captured statement with its values, like {@link StatementInformation#getSqlWithValues()}.
+   *
+   * @param maxLength maximum length of the rendered statement, marker included, or 0 for no limit
+   * @param maxValues maximum number of values rendered, the following placeholders being left as
+   *     {@code ?}, or 0 for no limit
+   * @param redactor the masking of the values, {@code null} to render them all
+   */
+  static String sqlWithValues(BoundStatement statement, int maxLength, int maxValues,
+      StatementRedactor redactor) {
+    if (statement.values == null) {
+      return truncate(statement.rendered, maxLength);
+    }
+    final String sql = statement.sql;
+    if (sql == null) {
+      return null;
+    }
+    final Object[] values = statement.values;
+    final StatementRedactor.Plan plan =
+        redactor != null ? redactor.plan(statement.statementInformation, sql) : null;
+
+    final int limit = maxLength > 0 ? maxLength : Integer.MAX_VALUE;
+    final StringBuilder rendered = new StringBuilder(Math.min(limit, sql.length() + 16 * values.length));
+    int parameter = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      final char c = sql.charAt(i);
+      if (c == '?' && (maxValues <= 0 || parameter < maxValues)) {
+        final Object value = parameter < values.length ? values[parameter] : null;
+        if (plan != null && redactor.masks(plan, parameter, value)) {
+          appendAtMost(rendered, StatementRedactor.MASK, limit);
+        } else {
+          appendValue(rendered, value, limit);
+        }
+      } else {
+        rendered.append(c);
+      }
+      if (c == '?') {
+        parameter++;
+      }
+      if (rendered.length() > limit) {
+        rendered.setLength(Math.max(0, limit - TRUNCATION_MARKER.length()));
+        return rendered.append(TRUNCATION_MARKER).toString();
+      }
+    }
+    return rendered.toString();
+  }
+
+  /**
+   * Hashes the statement with its bound values, so that statements executed with the same values
+   * can be told apart without rendering them. Only statements whose values cannot be read one by
+   * one, such as callable statements, are rendered by p6spy.
+   */
+  static long sqlWithValuesHash(StatementInformation statementInformation) {
+    final String sql = statementInformation.getSql();
+    final Map<Integer, Value> parameterValues = parameterValues(statementInformation);
+    if (parameterValues == null) {
+      // plain statements carry their values in their SQL
+      final String sqlWithValues = statementInformation instanceof PreparedStatementInformation
+          ? statementInformation.getSqlWithValues() : sql;
+      return sqlWithValues != null ? sqlWithValues.hashCode() : 0;
+    }
+    long hash = sql != null ? sql.hashCode() : 0;
+    for (Map.Entry<Integer, Value> parameter : parameterValues.entrySet()) {
+      final Value value = parameter.getValue();
+      hash = 31 * hash + parameter.getKey();
+      hash = 0x100000001b3L * (hash ^ valueHash(value != null ? value.getValue() : null));
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the values bound to a prepared statement by parameter index from 0, unset parameters
+   * being {@code null}, an empty array for a plain statement, and {@code null} if they cannot be
+   * read. Arrays of bytes are copied, as the statement may be executed again with other values.
+   */
+  static Object[] boundValues(StatementInformation statementInformation) {
+    if (!(statementInformation instanceof PreparedStatementInformation)) {
+      return new Object[0];
+    }
+    final Map<Integer, Value> parameterValues = parameterValues(statementInformation);
+    if (parameterValues == null) {
+      return null;
+    }
+    return copyValues(parameterValues);
+  }
+
+  private static Object[] copyValues(Map<Integer, Value> parameterValues) {
+    int count = 0;
+    for (Integer parameter : parameterValues.keySet()) {
+      count = Math.max(count, parameter + 1);
+    }
+    final Object[] values = new Object[count];
+    for (Map.Entry<Integer, Value> parameter : parameterValues.entrySet()) {
+      final Object raw = parameter.getValue() != null ? parameter.getValue().getValue() : null;
+      values[parameter.getKey()] = raw instanceof byte[] ? ((byte[]) raw).clone() : raw;
+    }
+    return values;
+  }
+
+  private static int valueHash(Object raw) {
+    if (raw instanceof byte[]) {
+      return Arrays.hashCode((byte[]) raw);
+    } else if (raw instanceof char[]) {
+      return Arrays.hashCode((char[]) raw);
+    } else if (raw instanceof Object[]) {
+      return Arrays.deepHashCode((Object[]) raw);
+    }
+    return raw != null ? raw.hashCode() : 0;
+  }
+
+  /**
+   * Appends the value as p6spy renders it, stopping one character past the limit. Strings, the
+   * values that may be large, are quoted while they are appended rather than rendered whole first.
+   */
+  private static void appendValue(StringBuilder rendered, Object value, int limit) {
+    if (!(value instanceof String)) {
+      appendAtMost(rendered, new Value(value).toString(), limit);
+      return;
+    }
+    final String string = (String) value;
+    rendered.append('\'');
+    for (int i = 0; i < string.length() && rendered.length() <= limit; i++) {
+      final char c = string.charAt(i);
+      rendered.append(c);
+      if (c == '\'') {
+        rendered.append('\'');
+      }
+    }
+    rendered.append('\'');
+  }
+
+  /**
+   * Appends the text up to one character past the limit, which is enough to know that the
+   * statement is truncated.
+   */
+  private static void appendAtMost(StringBuilder rendered, String text, int limit) {
+    rendered.append(text, 0, (int) Math.min(text.length(), (long) limit - rendered.length() + 1));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Integer, Value> parameterValues(StatementInformation statementInformation) {
+    // callable statements also have named parameters, which are left to p6spy
+    if (GET_PARAMETER_VALUES == null
+        || !(statementInformation instanceof PreparedStatementInformation)
+        || statementInformation instanceof CallableStatementInformation) {
+      return null;
+    }
+    try {
+      return (Map<Integer, Value>) GET_PARAMETER_VALUES.invoke(statementInformation);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static Method parameterValuesAccessor() {
+    try {
+      final Method method = PreparedStatementInformation.class.getDeclaredMethod("getParameterValues");
+      method.setAccessible(true);
+      return method;
+    } catch (Exception e) {
+      if (log.isLoggable(Level.FINE)) {
+        log.fine("Cannot access prepared statement values, statements will be rendered by p6spy.");
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Statements executed under one parent span, counted by fingerprint to detect N+1 query patterns
+ * and by SQL with its values to detect exact duplicates. Both are counted by 64 bits hashes, so that
+ * nothing is rendered nor kept per statement. At most {@link #MAX_STATEMENTS} distinct statements
+ * are tracked per parent span, the following ones being counted once.
+ */
+final class StatementRepetitions {
+  static final int MAX_STATEMENTS = 64;
+
+  private final Counts byFingerprint = new Counts();
+  private final Counts byStatement = new Counts();
+
+  /**
+   * Counts one more execution of the statement.
+   *
+   * @param fingerprint hash of the fingerprint of the statement
+   * @param statement hash of the statement with its bound values
+   */
+  synchronized Repetition count(long fingerprint, long statement) {
+    return new Repetition(byFingerprint.increment(fingerprint), byStatement.increment(statement));
+  }
+
+  /**
+   * Counts by hash in an open addressing table, grown up to twice {@link #MAX_STATEMENTS} slots.
+   */
+  private static final class Counts {
+    private long[] keys = new long[8];
+    private int[] counts = new int[8];
+    private int size;
+
+    int increment(long key) {
+      int slot = slot(keys, counts, key);
+      if (counts[slot] == 0) {
+        if (size >= MAX_STATEMENTS) {
+          return 1;
+        }
+        if (2 * (size + 1) > keys.length) {
+          grow();
+          slot = slot(keys, counts, key);
+        }
+        keys[slot] = key;
+        size++;
+      }
+      return ++counts[slot];
+    }
+
+    private void grow() {
+      final long[] oldKeys = keys;
+      final int[] oldCounts = counts;
+      keys = new long[oldKeys.length * 2];
+      counts = new int[oldCounts.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldCounts[i] != 0) {
+          final int slot = slot(keys, counts, oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+
+    /**
+     * Slot of the key, or of the empty slot where it belongs.
+     */
+    private static int slot(long[] keys, int[] counts, long key) {
+      final int mask = keys.length - 1;
+      int slot = ((int) (key ^ (key >>> 32)) * 0x9e3779b9 >>> 16) & mask;
+      while (counts[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+
+  /**
+   * Number of executions of a statement under its parent span, including itself.
+   */
+  static final class Repetition {
+    final int sameFingerprint;
+    final int sameValues;
+
+    Repetition(int sameFingerprint, int sameValues) {
+      this.sameFingerprint = sameFingerprint;
+      this.sameValues = sameValues;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consecutive executions of statements with the same fingerprint on a connection, under the same
+ * parent span, reported as a single span by the {@code traceCompressStatements} option.
+ *
+ * <p>A run ends with the first statement that does not continue it, with a commit, a rollback or
+ * the close of its connection, or at the latest {@link #MAX_PENDING_MILLIS} after it started, so
+ * that the run of a connection returned to its pool is not kept pending until its next use. The
+ * statements of the run are added under its lock, and it is closed once, by whoever ends it first.
+ */
+final class StatementRun {
+  static final long MAX_PENDING_MILLIS = 1000;
+  /** Ends pending runs, its thread ending when no run is pending. */
+  private static final ScheduledThreadPoolExecutor FLUSHER = flusher();
+
+  final Tracer tracer;
+  final String operationName;
+  final ConnectionDescriptor connection;
+  final String fingerprint;
+  final String sql;
+  /** Values of the first statement, reported only if the run has a single statement. */
+  final BoundStatement boundStatement;
+  final Span parentSpan;
+  final long startMicros;
+  /** Whether the run is reported, decided by its first statement. */
+  final boolean traced;
+  long finishMicros;
+  int count;
+  long totalNanos;
+  long minNanos = Long.MAX_VALUE;
+  long maxNanos;
+  int errors;
+  /** Repetition of the last statement of the run, {@code null} unless N+1 detection is enabled. */
+  StatementRepetitions.Repetition repetition;
+  private boolean closed;
+  private ScheduledFuture<?> flush;
+
+  StatementRun(Tracer tracer, String operationName, ConnectionDescriptor connection,
+      String fingerprint, String sql, BoundStatement boundStatement, Span parentSpan, long startMicros,
+      boolean traced) {
+    this.tracer = tracer;
+    this.operationName = operationName;
+    this.connection = connection;
+    this.fingerprint = fingerprint;
+    this.sql = sql;
+    this.boundStatement = boundStatement;
+    this.parentSpan = parentSpan;
+    this.startMicros = startMicros;
+    this.traced = traced;
+  }
+
+  /**
+   * Returns whether a statement continues the run.
+   */
+  boolean continuedBy(Tracer tracer, String operationName, String fingerprint, Span parentSpan) {
+    return this.tracer == tracer && this.parentSpan == parentSpan
+        && this.operationName.equals(operationName) && this.fingerprint.equals(fingerprint);
+  }
+
+  /**
+   * Adds a statement to the run, the caller holding the lock of the run and having checked that it
+   * is not {@link #isClosed() closed}.
+   */
+  void add(long finishMicros, long timeElapsedNanos, boolean error,
+      StatementRepetitions.Repetition repetition) {
+    this.finishMicros = finishMicros;
+    count++;
+    totalNanos += timeElapsedNanos;
+    minNanos = Math.min(minNanos, timeElapsedNanos);
+    maxNanos = Math.max(maxNanos, timeElapsedNanos);
+    if (error) {
+      errors++;
+    }
+    this.repetition = repetition;
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Schedules the end of the run once {@link #MAX_PENDING_MILLIS} are elapsed.
+   */
+  void flushLater(Runnable flush) {
+    this.flush = FLUSHER.schedule(flush, MAX_PENDING_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes the run, which no statement is added to anymore.
+   *
+   * @return whether the run was closed by this call, and should be reported by the caller
+   */
+  synchronized boolean close() {
+    if (closed) {
+      return false;
+    }
+    closed = true;
+    if (flush != null) {
+      flush.cancel(false);
+    }
+    return true;
+  }
+
+  private static ScheduledThreadPoolExecutor flusher() {
+    final ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "p6spy-tracing-run-flusher");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    flusher.setRemoveOnCancelPolicy(true);
+    flusher.setKeepAliveTime(MAX_PENDING_MILLIS, TimeUnit.MILLISECONDS);
+    flusher.allowCoreThreadTimeOut(true);
+    return flusher;
+  }
+}
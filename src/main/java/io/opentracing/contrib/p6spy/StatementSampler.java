@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a statement is traced, first with a fixed probability and then within a
+ * maximum number of spans per second.
+ */
+final class StatementSampler {
+  static final StatementSampler ALWAYS = new StatementSampler(1.0, null);
+
+  private final double sampleRate;
+  /** Shared by the samplers of a profile, {@code null} for no limit. */
+  final RateLimiter rateLimiter;
+
+  /**
+   * @param sampleRate probability, between 0 and 1, that a statement is traced
+   * @param rateLimiter limiter of the traced statements, or {@code null} for no limit
+   */
+  StatementSampler(double sampleRate, RateLimiter rateLimiter) {
+    this.sampleRate = sampleRate;
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * @param maxSpansPerSecond maximum number of traced statements per second, or 0 for no limit
+   */
+  static StatementSampler of(double sampleRate, long maxSpansPerSecond) {
+    return of(sampleRate, maxSpansPerSecond > 0 ? new RateLimiter(maxSpansPerSecond) : null);
+  }
+
+  static StatementSampler of(double sampleRate, RateLimiter rateLimiter) {
+    return sampleRate >= 1.0 && rateLimiter == null ? ALWAYS
+        : new StatementSampler(sampleRate, rateLimiter);
+  }
+
+  boolean sample() {
+    if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return false;
+    }
+    return rateLimiter == null || rateLimiter.tryAcquire();
+  }
+}
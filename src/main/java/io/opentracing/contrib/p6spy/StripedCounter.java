@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter striped by thread, for counters incremented on every statement. Stripes are padded to
+ * sit on different cache lines.
+ */
+final class StripedCounter {
+  private static final int STRIPES = 8;
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void increment() {
+    add(1);
+  }
+
+  void add(long delta) {
+    cells.addAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, delta);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+}
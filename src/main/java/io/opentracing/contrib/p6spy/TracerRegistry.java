@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import io.opentracing.Tracer;
+import io.opentracing.noop.NoopTracer;
+import io.opentracing.util.GlobalTracer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracers used by the p6spy tracing listeners instead of the {@link GlobalTracer}, registered for
+ * every p6spy configuration, for the configuration of a {@code jmxPrefix}, or for the jdbc urls
+ * starting with a prefix.
+ * <p>
+ * The tracer of a connection is resolved once, from the most specific registration: the longest
+ * matching url prefix, then the {@code jmxPrefix}, then the default tracer, falling back to the
+ * {@link GlobalTracer}. Connections resolve their tracer again after any registration change.
+ */
+public final class TracerRegistry {
+  private static final ConcurrentMap<String, Tracer> tracersByUrlPrefix = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Tracer> tracersByJmxPrefix = new ConcurrentHashMap<>();
+  private static volatile Tracer defaultTracer;
+  private static final AtomicInteger generation = new AtomicInteger();
+
+  private TracerRegistry() {
+  }
+
+  /**
+   * Registers the tracer of every p6spy configuration, unless overridden by a more specific
+   * registration.
+   */
+  public static void registerDefault(Tracer tracer) {
+    defaultTracer = tracer;
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Registers the tracer of the p6spy configuration having the given {@code jmxPrefix}.
+   */
+  public static void registerForJmxPrefix(String jmxPrefix, Tracer tracer) {
+    tracersByJmxPrefix.put(nullToEmpty(jmxPrefix), tracer);
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Registers the tracer of the connections whose url starts with the given prefix. The url is the
+   * one of the underlying connection, without {@code p6spy:}, like {@code jdbc:mysql://orders-db}.
+   */
+  public static void registerForUrlPrefix(String urlPrefix, Tracer tracer) {
+    tracersByUrlPrefix.put(urlPrefix, tracer);
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Removes every registration, the {@link GlobalTracer} being used again.
+   */
+  public static void clear() {
+    defaultTracer = null;
+    tracersByJmxPrefix.clear();
+    tracersByUrlPrefix.clear();
+    generation.incrementAndGet();
+  }
+
+  static int generation() {
+    return generation.get();
+  }
+
+  static Resolution resolve(String jmxPrefix, String url) {
+    final int resolvedGeneration = generation.get();
+    Tracer tracer = null;
+    if (url != null) {
+      int longestPrefix = -1;
+      for (Map.Entry<String, Tracer> entry : tracersByUrlPrefix.entrySet()) {
+        if (url.startsWith(entry.getKey()) && entry.getKey().length() > longestPrefix) {
+          longestPrefix = entry.getKey().length();
+          tracer = entry.getValue();
+        }
+      }
+    }
+    if (tracer == null) {
+      tracer = tracersByJmxPrefix.get(nullToEmpty(jmxPrefix));
+    }
+    if (tracer == null) {
+      tracer = defaultTracer;
+    }
+    return new Resolution(tracer != null ? tracer : GlobalTracer.get(), resolvedGeneration);
+  }
+
+  private static String nullToEmpty(String s) {
+    return s != null ? s : "";
+  }
+
+  /**
+   * Tracer resolved for a connection, valid as long as the registrations do not change.
+   */
+  static final class Resolution {
+    final Tracer tracer;
+    final int generation;
+
+    private Resolution(Tracer tracer, int generation) {
+      this.tracer = tracer;
+      this.generation = generation;
+    }
+
+    /**
+     * Returns the tracer, {@code null} if it is a no-op tracer, or the {@link GlobalTracer} while no
+     * tracer is registered to it.
+     */
+    Tracer tracer() {
+      if (tracer instanceof NoopTracer
+          || tracer instanceof GlobalTracer && !GlobalTracer.isRegistered()) {
+        return null;
+      }
+      return tracer;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MalformedObjectNameException;
+
+/**
+ * Counters of the tracing listeners, exposed over JMX.
+ */
+final class TracingListenerMonitor implements TracingListenerMonitorMBean {
+  private static final Logger log = Logger.getLogger(TracingListenerMonitor.class.getName());
+  private static final Map<String, TracingListenerMonitor> sharedMonitors = new HashMap<>();
+
+  final StripedCounter spansStarted = new StripedCounter();
+  /** Statements left out by sampling, or of connections whose url cannot be read. */
+  final StripedCounter noopSpans = new StripedCounter();
+  final StripedCounter spansSkippedWithoutActiveSpan = new StripedCounter();
+  final StripedCounter metadataFailures = new StripedCounter();
+  final StripedCounter metadataCacheHits = new StripedCounter();
+  final StripedCounter metadataCacheMisses = new StripedCounter();
+  /** Entries of connections, statements or result sets evicted from a full cache. */
+  final StripedCounter cacheEvictions = new StripedCounter();
+  /** Time spent in the listener before statements, commits and rollbacks. */
+  final StripedCounter beforeNanos = new StripedCounter();
+  /**
+   * Time spent in the listener after statements, commits, rollbacks, statements added to a batch
+   * and rows fetched.
+   */
+  final StripedCounter afterNanos = new StripedCounter();
+  /** Time spent reporting spans on the reporter thread, and ending pending statement runs. */
+  final StripedCounter backgroundNanos = new StripedCounter();
+
+  /**
+   * Returns the monitor of the p6spy configuration with the given {@code jmxPrefix}, registered in
+   * the {@code com.p6spy} domain suffixed by the prefix and shared by the reloads of
+   * {@code spy.properties}, or {@code null} if it is disabled, in which case the monitor in use is
+   * unregistered.
+   */
+  static TracingListenerMonitor publish(String jmxPrefix, boolean enabled) {
+    final String key = jmxPrefix != null ? jmxPrefix : "";
+    synchronized (sharedMonitors) {
+      final TracingListenerMonitor current = sharedMonitors.get(key);
+      if (enabled) {
+        if (current == null) {
+          final TracingListenerMonitor monitor = new TracingListenerMonitor();
+          register(jmxPrefix, monitor);
+          sharedMonitors.put(key, monitor);
+          return monitor;
+        }
+        return current;
+      }
+      if (sharedMonitors.remove(key) != null) {
+        unregister(jmxPrefix);
+      }
+    }
+    return null;
+  }
+
+  private static void register(String jmxPrefix, TracingListenerMonitor monitor) {
+    try {
+      TracingMBeans.register(monitor, TracingMBeans.objectName(jmxPrefix, TracingListenerMonitor.class));
+    } catch (MalformedObjectNameException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Failed to name the MBean of the tracing listener.", e);
+      }
+    }
+  }
+
+  private static void unregister(String jmxPrefix) {
+    try {
+      TracingMBeans.unregister(TracingMBeans.objectName(jmxPrefix, TracingListenerMonitor.class));
+    } catch (MalformedObjectNameException ignored) {
+      // never registered
+    }
+  }
+
+  @Override public long getSpansStarted() {
+    return spansStarted.sum();
+  }
+
+  @Override public long getNoopSpans() {
+    return noopSpans.sum();
+  }
+
+  @Override public long getSpansSkippedWithoutActiveSpan() {
+    return spansSkippedWithoutActiveSpan.sum();
+  }
+
+  @Override public long getMetadataFailures() {
+    return metadataFailures.sum();
+  }
+
+  @Override public long getMetadataCacheHits() {
+    return metadataCacheHits.sum();
+  }
+
+  @Override public long getMetadataCacheMisses() {
+    return metadataCacheMisses.sum();
+  }
+
+  @Override public double getMetadataCacheHitRatio() {
+    final long hits = metadataCacheHits.sum();
+    final long lookups = hits + metadataCacheMisses.sum();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override public long getCacheEvictions() {
+    return cacheEvictions.sum();
+  }
+
+  @Override public long getBeforeNanos() {
+    return beforeNanos.sum();
+  }
+
+  @Override public long getAfterNanos() {
+    return afterNanos.sum();
+  }
+
+  @Override public long getBackgroundNanos() {
+    return backgroundNanos.sum();
+  }
+}
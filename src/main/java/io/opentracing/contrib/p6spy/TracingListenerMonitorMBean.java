@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Work done, and avoided, by the tracing listeners of a p6spy configuration.
+ */
+public interface TracingListenerMonitorMBean {
+  long getSpansStarted();
+
+  long getNoopSpans();
+
+  long getSpansSkippedWithoutActiveSpan();
+
+  long getMetadataFailures();
+
+  long getMetadataCacheHits();
+
+  long getMetadataCacheMisses();
+
+  double getMetadataCacheHitRatio();
+
+  long getCacheEvictions();
+
+  long getBeforeNanos();
+
+  long getAfterNanos();
+
+  long getBackgroundNanos();
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.spy.P6MBeansRegistry;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Registers the MBeans of the tracing listener next to the ones of p6spy, in the
+ * {@code com.p6spy} domain suffixed by the {@code jmxPrefix} option.
+ */
+final class TracingMBeans {
+  private static final Logger log = Logger.getLogger(TracingMBeans.class.getName());
+
+  private TracingMBeans() {
+  }
+
+  /**
+   * @param properties additional key properties of the name, as key and value pairs
+   */
+  static ObjectName objectName(String jmxPrefix, Class<?> type, String... properties)
+      throws MalformedObjectNameException {
+    final StringBuilder name = new StringBuilder(P6MBeansRegistry.PACKAGE_NAME);
+    if (jmxPrefix != null && !jmxPrefix.isEmpty()) {
+      name.append('.').append(jmxPrefix);
+    }
+    name.append(":name=").append(type.getName());
+    for (int i = 0; i + 1 < properties.length; i += 2) {
+      name.append(',').append(properties[i]).append('=').append(ObjectName.quote(properties[i + 1]));
+    }
+    return new ObjectName(name.toString());
+  }
+
+  /**
+   * Registers the MBean, replacing the one registered under the same name by a previous
+   * configuration of p6spy.
+   */
+  static void register(Object mBean, ObjectName name) {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      try {
+        server.registerMBean(mBean, name);
+      } catch (InstanceAlreadyExistsException e) {
+        server.unregisterMBean(name);
+        server.registerMBean(mBean, name);
+      }
+    } catch (JMException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Failed to register the MBean [" + name + "].", e);
+      }
+    }
+  }
+
+  static void unregister(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (InstanceNotFoundException ignored) {
+      // replaced by a later configuration, which unregistered it
+    } catch (JMException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Failed to unregister the MBean [" + name + "].", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the tracing options found in jdbc urls. Each distinct url is parsed once and the result
+ * is kept in a cache shared by all the listeners of a {@link TracingP6SpyFactory}, evicting the
+ * urls used least recently beyond {@link #MAX_CACHED_URLS}.
+ * <p>
+ * Urls starting with the {@code urlPrefix} of a {@link TracingProfile} use the options of the
+ * profile, with the longest matching prefix, as defaults.
+ * <p>
+ * The defaults, the profiles and the cache form an immutable snapshot, replaced as a whole when the options of
+ * {@code spy.properties} are reloaded, so that the listeners of connections opened before the
+ * reload pick the new options up.
+ */
+final class TracingOptionsResolver {
+  private static final Logger log = Logger.getLogger(TracingOptionsResolver.class.getName());
+  private final static Pattern URL_PEER_SERVICE_FINDER =
+      Pattern.compile("tracingPeerService=(\\w*)");
+
+  final static int MAX_CACHED_URLS = 1024;
+
+  private enum OptionalBoolean {
+    TRUE, FALSE, OPTION_NOT_FOUND
+  }
+
+  private final static String TRACE_WITH_ACTIVE_SPAN_ONLY_FINDER = "traceWithActiveSpanOnly=true";
+  private final static String TRACE_WITHOUT_ACTIVE_SPAN_ONLY_FINDER = "traceWithActiveSpanOnly=false";
+  private final static String TRACE_WITH_STATEMENT_VALUES = "traceWithStatementValues=true";
+  private final static String TRACE_WITHOUT_STATEMENT_VALUES = "traceWithStatementValues=false";
+  private final static String TRACE_SAMPLE_RATE = "traceSampleRate";
+  private final static String TRACE_MAX_SPANS_PER_SECOND = "traceMaxSpansPerSecond";
+  private final static String TRACE_SLOWER_THAN_MILLIS = "traceSlowerThanMillis";
+  private final static String TRACE_STATEMENT_FINGERPRINT = "traceStatementFingerprint";
+  private final static String TRACE_MAX_STATEMENT_LENGTH = "traceMaxStatementLength";
+  private final static String TRACE_MAX_BATCH_VALUES = "traceMaxBatchValues";
+  private final static String TRACE_RESULT_SET_FETCH = "traceResultSetFetch";
+  private final static String TRACE_TRANSACTIONS = "traceTransactions";
+  private final static String TRACE_N_PLUS_ONE_THRESHOLD = "traceNPlusOneThreshold";
+  private final static String TRACE_COMPRESS_STATEMENTS = "traceCompressStatements";
+
+  /** Resolvers shared by the successive factories of a {@code jmxPrefix}, across reloads. */
+  private static final ConcurrentMap<String, TracingOptionsResolver> sharedResolvers =
+      new ConcurrentHashMap<>();
+
+  private volatile Snapshot snapshot;
+
+  TracingOptionsResolver(String defaultPeerService, boolean defaultTraceWithActiveSpanOnly,
+      boolean defaultTraceWithStatementValues) {
+    this(ResolvedTracingOptions.builder()
+        .peerService(defaultPeerService)
+        .traceWithActiveSpanOnly(defaultTraceWithActiveSpanOnly)
+        .traceWithStatementValues(defaultTraceWithStatementValues)
+        .build());
+  }
+
+  /**
+   * @param defaults the options of {@code spy.properties}, used when the url does not override them
+   */
+  TracingOptionsResolver(ResolvedTracingOptions defaults) {
+    this(defaults, Collections.<TracingProfile>emptyList());
+  }
+
+  TracingOptionsResolver(ResolvedTracingOptions defaults, List<TracingProfile> profiles) {
+    this.snapshot = new Snapshot(defaults, profiles, 0, null);
+  }
+
+  /**
+   * Returns the resolver of the p6spy configuration having the given {@code jmxPrefix}, updated
+   * with the defaults if it already exists.
+   */
+  static TracingOptionsResolver publish(String jmxPrefix, ResolvedTracingOptions defaults,
+      List<TracingProfile> profiles) {
+    final String key = jmxPrefix != null ? jmxPrefix : "";
+    TracingOptionsResolver resolver = sharedResolvers.get(key);
+    if (resolver == null) {
+      resolver = new TracingOptionsResolver(defaults, profiles);
+      final TracingOptionsResolver previous = sharedResolvers.putIfAbsent(key, resolver);
+      if (previous == null) {
+        return resolver;
+      }
+      resolver = previous;
+    }
+    resolver.update(defaults, profiles);
+    return resolver;
+  }
+
+  /**
+   * Replaces the defaults, the options of every url being resolved again.
+   */
+  void update(ResolvedTracingOptions defaults) {
+    update(defaults, Collections.<TracingProfile>emptyList());
+  }
+
+  synchronized void update(ResolvedTracingOptions defaults, List<TracingProfile> profiles) {
+    snapshot = new Snapshot(defaults, profiles, snapshot.generation + 1, snapshot);
+  }
+
+  /**
+   * Returns a number changing every time the defaults are replaced.
+   */
+  int generation() {
+    return snapshot.generation;
+  }
+
+  ResolvedTracingOptions resolve(String url) {
+    final Snapshot snapshot = this.snapshot;
+    if (url == null) {
+      return snapshot.nullUrlOptions;
+    }
+    final BoundedLruCache<String, ResolvedTracingOptions> resolvedOptions = snapshot.resolvedOptions;
+    ResolvedTracingOptions options = resolvedOptions.get(url);
+    if (options == null) {
+      final ResolvedTracingOptions profile = snapshot.profiles.longestPrefixOf(url);
+      final ResolvedTracingOptions defaults = profile != null ? profile : snapshot.defaults;
+      options = parse(url, defaults, defaults.sampler.rateLimiter);
+      resolvedOptions.put(url, options);
+    }
+    return options;
+  }
+
+  /**
+   * @param rateLimiter limiter to share if the options allow as many spans per second
+   */
+  private static ResolvedTracingOptions parse(String url, ResolvedTracingOptions defaults,
+      RateLimiter rateLimiter) {
+    final String extractedPeerName = extractPeerService(url);
+    final String peerName =
+        extractedPeerName != null && !extractedPeerName.isEmpty() ? extractedPeerName
+            : defaults.peerService;
+    return defaults.toBuilder()
+        .peerService(peerName)
+        .dbType(extractDbType(url))
+        .traceWithActiveSpanOnly(!allowTraceWithNoActiveSpan(url, defaults))
+        .traceWithStatementValues(allowTraceWithStatementValues(url, defaults))
+        .traceSampleRate(parseSampleRate(extractValue(url, TRACE_SAMPLE_RATE), defaults.traceSampleRate))
+        .traceMaxSpansPerSecond(parseLong(extractValue(url, TRACE_MAX_SPANS_PER_SECOND), defaults.traceMaxSpansPerSecond))
+        .traceSlowerThanMillis(parseLong(extractValue(url, TRACE_SLOWER_THAN_MILLIS), defaults.traceSlowerThanMillis))
+        .traceStatementFingerprint(parseBoolean(extractValue(url, TRACE_STATEMENT_FINGERPRINT), defaults.traceStatementFingerprint))
+        .traceMaxStatementLength(parseInt(extractValue(url, TRACE_MAX_STATEMENT_LENGTH), defaults.traceMaxStatementLength))
+        .traceMaxBatchValues(parseInt(extractValue(url, TRACE_MAX_BATCH_VALUES), defaults.traceMaxBatchValues))
+        .traceResultSetFetch(parseBoolean(extractValue(url, TRACE_RESULT_SET_FETCH), defaults.traceResultSetFetch))
+        .traceTransactions(parseBoolean(extractValue(url, TRACE_TRANSACTIONS), defaults.traceTransactions))
+        .traceNPlusOneThreshold(parseInt(extractValue(url, TRACE_N_PLUS_ONE_THRESHOLD), defaults.traceNPlusOneThreshold))
+        .traceCompressStatements(parseBoolean(extractValue(url, TRACE_COMPRESS_STATEMENTS), defaults.traceCompressStatements))
+        .rateLimiter(rateLimiter)
+        .build();
+  }
+
+  /**
+   * Parses a probability, falling back to the default value if it is missing or out of [0, 1].
+   */
+  static double parseSampleRate(String value, double defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      final double sampleRate = Double.parseDouble(value);
+      if (sampleRate >= 0.0 && sampleRate <= 1.0) {
+        return sampleRate;
+      }
+    } catch (NumberFormatException ignored) {
+    }
+    if(log.isLoggable(Level.WARNING)) {
+      log.warning("Invalid sample rate " + value + ", it must be between 0 and 1. Defaulting to " + defaultValue);
+    }
+    return defaultValue;
+  }
+
+  static long parseLong(String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.warning("Invalid number " + value + ". Defaulting to " + defaultValue);
+      }
+      return defaultValue;
+    }
+  }
+
+  static int parseInt(String value, int defaultValue) {
+    return (int) Math.min(Integer.MAX_VALUE, parseLong(value, defaultValue));
+  }
+
+  static boolean parseBoolean(String value, boolean defaultValue) {
+    if ("true".equalsIgnoreCase(value)) {
+      return true;
+    } else if ("false".equalsIgnoreCase(value)) {
+      return false;
+    }
+    if (value != null && log.isLoggable(Level.WARNING)) {
+      log.warning("Invalid boolean " + value + ". Defaulting to " + defaultValue);
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of a {@code name=value} url option, or {@code null} if the option is absent.
+   */
+  static String extractValue(String url, String name) {
+    if (url == null) {
+      return null;
+    }
+    final int index = url.indexOf(name + "=");
+    if (index < 0) {
+      return null;
+    }
+    final int start = index + name.length() + 1;
+    int end = start;
+    while (end < url.length() && ";&?".indexOf(url.charAt(end)) < 0) {
+      end++;
+    }
+    return url.substring(start, end);
+  }
+
+  private static String extractDbType(String realUrl) {
+    if (realUrl == null || realUrl.isEmpty()) {
+      return null;
+    }
+    final int start = realUrl.indexOf(':') + 1;
+    if (start == 0) {
+      return null;
+    }
+    final int end = realUrl.indexOf(':', start);
+    return end < 0 ? realUrl.substring(start) : realUrl.substring(start, end);
+  }
+
+  private static String extractPeerService(String url) {
+    if (url != null) {
+      Matcher matcher = URL_PEER_SERVICE_FINDER.matcher(url);
+      if (matcher.find() && matcher.groupCount() == 1) {
+        return matcher.group(1);
+      }
+    }
+    return "";
+  }
+
+  private static boolean allowTraceWithNoActiveSpan(String url, ResolvedTracingOptions defaults) {
+    final OptionalBoolean withActiveSpanOnly = withActiveSpanOnly(url);
+    return withActiveSpanOnly != OptionalBoolean.OPTION_NOT_FOUND && withActiveSpanOnly == OptionalBoolean.FALSE || withActiveSpanOnly == OptionalBoolean.OPTION_NOT_FOUND && !defaults.traceWithActiveSpanOnly;
+  }
+
+  private static boolean allowTraceWithStatementValues(String url, ResolvedTracingOptions defaults) {
+    final OptionalBoolean withStatementValues = withStatementValues(url);
+    return withStatementValues != OptionalBoolean.OPTION_NOT_FOUND && withStatementValues == OptionalBoolean.TRUE || withStatementValues == OptionalBoolean.OPTION_NOT_FOUND && defaults.traceWithStatementValues;
+  }
+
+  private static OptionalBoolean withActiveSpanOnly(String url) {
+    return withOrWithout(url, TRACE_WITH_ACTIVE_SPAN_ONLY_FINDER, TRACE_WITHOUT_ACTIVE_SPAN_ONLY_FINDER);
+  }
+
+  private static OptionalBoolean withStatementValues(String url) {
+    return withOrWithout(url, TRACE_WITH_STATEMENT_VALUES, TRACE_WITHOUT_STATEMENT_VALUES);
+  }
+
+  private static OptionalBoolean withOrWithout(String url, String with, String without) {
+    if(url == null) {
+      return OptionalBoolean.OPTION_NOT_FOUND;
+    }
+    if(url.contains(with) && url.contains(without)) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.warning("jdbc url contains contradictory " + with + " and " + without + " options. Defaulting to no options");
+      }
+      return OptionalBoolean.OPTION_NOT_FOUND;
+    }
+    if(url.contains(with)) {
+      return OptionalBoolean.TRUE;
+    } else if (url.contains(without)) {
+      return OptionalBoolean.FALSE;
+    }
+    return OptionalBoolean.OPTION_NOT_FOUND;
+  }
+
+  /**
+   * The rate limiters of the defaults and of each profile are carried over from the previous
+   * snapshot while their rate is unchanged, so that {@code traceMaxSpansPerSecond} caps the spans of
+   * all the urls of a profile, or of all the urls without profile, across reloads.
+   */
+  private static final class Snapshot {
+    final ResolvedTracingOptions defaults;
+    final ResolvedTracingOptions nullUrlOptions;
+    /** Options of the profiles, used as defaults. */
+    final UrlPrefixTrie<ResolvedTracingOptions> profiles = new UrlPrefixTrie<>();
+    final Map<String, RateLimiter> profileRateLimiters = new HashMap<>();
+    final BoundedLruCache<String, ResolvedTracingOptions> resolvedOptions =
+        new BoundedLruCache<>(MAX_CACHED_URLS);
+    final int generation;
+
+    Snapshot(ResolvedTracingOptions defaults, List<TracingProfile> profiles, int generation,
+        Snapshot previous) {
+      this.defaults = previous == null ? defaults
+          : defaults.toBuilder().rateLimiter(previous.defaults.sampler.rateLimiter).build();
+      this.nullUrlOptions = parse(null, this.defaults, this.defaults.sampler.rateLimiter);
+      for (TracingProfile profile : profiles) {
+        // the options of a profile are parsed like the ones of a url, with a limiter of their own
+        final ResolvedTracingOptions options = parse(profile.options, this.defaults,
+            previous == null ? null : previous.profileRateLimiters.get(profile.urlPrefix));
+        this.profiles.put(profile.urlPrefix, options);
+        this.profileRateLimiters.put(profile.urlPrefix, options.sampler.rateLimiter);
+      }
+      this.generation = generation;
+    }
+  }
+}
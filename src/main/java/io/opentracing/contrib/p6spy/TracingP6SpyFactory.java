@@ -16,17 +16,64 @@ package io.opentracing.contrib.p6spy;
 import com.p6spy.engine.event.JdbcEventListener;
 import com.p6spy.engine.spy.P6Factory;
 import com.p6spy.engine.spy.P6LoadableOptions;
+import com.p6spy.engine.spy.option.P6OptionChangedListener;
 import com.p6spy.engine.spy.option.P6OptionsRepository;
+import java.util.concurrent.TimeUnit;
 
-public class TracingP6SpyFactory implements P6Factory {
+public class TracingP6SpyFactory implements P6Factory, P6OptionChangedListener {
 
   private TracingP6SpyOptions options;
+  private TracingOptionsResolver optionsResolver;
+  private AsyncSpanReporter reporter;
+  private StatementLatencies latencies;
+  private TracingListenerMonitor monitor;
+  private OverheadGovernor governor;
+  private StatementExplainer explainer;
+  private boolean initialized;
 
   public P6LoadableOptions getOptions(P6OptionsRepository p6OptionsRepository) {
-    return options = new TracingP6SpyOptions(p6OptionsRepository);
+    options = new TracingP6SpyOptions(p6OptionsRepository);
+    // notified once the options are loaded, and of every change following, including reloads of
+    // spy.properties which are made by a new factory
+    p6OptionsRepository.registerOptionChangedListener(this);
+    return options;
   }
 
-  public JdbcEventListener getJdbcEventListener() {
-    return new TracingP6SpyListener(options.tracingPeerService(), options.traceWithActiveSpanOnly(), options.traceWithStatementValues());
+  /**
+   * Publishes the new tracing options to the listeners of all the connections, including the ones
+   * created by the factory in use before a reload.
+   */
+  @Override
+  public synchronized void optionChanged(String key, Object oldValue, Object newValue) {
+    if (TracingP6SpyOptions.isTracingOption(key)) {
+      optionsResolver = TracingOptionsResolver.publish(options.getJmxPrefix(), options.defaults(),
+          options.profiles());
+    }
+  }
+
+  public synchronized JdbcEventListener getJdbcEventListener() {
+    if (optionsResolver == null) {
+      // no tracing option was set
+      optionsResolver = TracingOptionsResolver.publish(options.getJmxPrefix(), options.defaults(),
+          options.profiles());
+    }
+    if (!initialized) {
+      initialized = true;
+      // shared with the configuration in use before a reload, or replacing and stopping it
+      reporter = AsyncSpanReporter.publish(options.getJmxPrefix(), options.traceAsyncQueueSize(),
+          options.traceAsyncOverflowPolicy());
+      latencies = StatementLatencies.publish(options.getJmxPrefix(),
+          options.traceLatencyHistograms() && options.getJmx());
+      monitor = TracingListenerMonitor.publish(options.getJmxPrefix(),
+          options.traceMonitoring() && options.getJmx());
+      governor = OverheadGovernor.publish(options.getJmxPrefix(),
+          options.traceOverheadBudgetPercent());
+      explainer = StatementExplainer.publish(options.getJmxPrefix(),
+          TimeUnit.MILLISECONDS.toNanos(options.traceExplainSlowerThanMillis()),
+          TimeUnit.SECONDS.toNanos(options.traceExplainIntervalSeconds()),
+          options.traceExplainUser(), options.traceExplainPassword());
+    }
+    return new TracingP6SpyListener(optionsResolver, reporter, latencies, monitor,
+        options.getJmxPrefix(), governor, explainer);
   }
 }
@@ -13,215 +13,1209 @@
  */
 package io.opentracing.contrib.p6spy;
 
+import com.p6spy.engine.common.ConnectionInformation;
+import com.p6spy.engine.common.ResultSetInformation;
 import com.p6spy.engine.common.StatementInformation;
 import com.p6spy.engine.event.SimpleJdbcEventListener;
-import io.opentracing.Scope;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
-import io.opentracing.noop.NoopScopeManager;
 import io.opentracing.noop.NoopSpan;
 import io.opentracing.tag.Tags;
-import io.opentracing.util.GlobalTracer;
 
 import java.io.Closeable;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class TracingP6SpyListener extends SimpleJdbcEventListener {
   private static final Logger log = Logger.getLogger(TracingP6SpyListener.class.getName());
-  private final static Pattern URL_PEER_SERVICE_FINDER =
-      Pattern.compile("tracingPeerService=(\\w*)");
+  private final static int MAX_CACHED_CONNECTIONS = 4096;
+  final static String DB_STATEMENT_FINGERPRINT = "db.statement.fingerprint";
+  private final static String DB_BATCH_SIZE = "db.batch.size";
+  private final static String DB_BATCH_UPDATE_COUNTS = "db.batch.update_counts";
+  private final static String DB_BATCH_FAILURES = "db.batch.failures";
+  private final static String DB_FETCH_ROWS = "db.fetch.rows";
+  private final static String DB_FETCH_NANOS = "db.fetch.nanos";
+  private final static String DB_FETCH_FIRST_ROW_NANOS = "db.fetch.first_row_nanos";
+  private final static String DB_TRANSACTION_STATEMENTS = "db.transaction.statements";
+  private final static String DB_TRANSACTION_NANOS = "db.transaction.nanos";
+  private final static String DB_STATEMENT_COUNT = "db.statement.count";
+  private final static String DB_STATEMENT_TOTAL_NANOS = "db.statement.total_nanos";
+  private final static String DB_STATEMENT_MIN_NANOS = "db.statement.min_nanos";
+  private final static String DB_STATEMENT_MAX_NANOS = "db.statement.max_nanos";
+  private final static String DB_STATEMENT_ERRORS = "db.statement.errors";
+  private final static String DB_N_PLUS_ONE = "db.n_plus_one";
+  private final static String DB_N_PLUS_ONE_COUNT = "db.n_plus_one.count";
+  private final static String DB_DUPLICATE = "db.duplicate";
+  private final static String DB_DUPLICATE_COUNT = "db.duplicate.count";
 
-  private enum OptionalBoolean {
-    TRUE, FALSE, OPTION_NOT_FOUND
+  private final TracingOptionsResolver optionsResolver;
+  private final AsyncSpanReporter reporter;
+  private final StatementLatencies latencies;
+  private final TracingListenerMonitor monitor;
+  private final OverheadGovernor governor;
+  private final StatementExplainer explainer;
+  private final String jmxPrefix;
+  /**
+   * Spans of the statements being executed, by {@link StatementInformation}, or by
+   * {@link ConnectionInformation} for commits and rollbacks. Keeping them per statement rather than
+   * per thread closes nested and interleaved statements of a thread correctly, and weakly, so that
+   * statements whose execution is never reported as completed do not leak. Unbounded, as a span is
+   * only finished by the completion of its statement, however many statements are executing.
+   */
+  final WeakKeyCache<Object, ExecutingSpan> executingSpans = new WeakKeyCache<>(0);
+  private final WeakKeyCache<ConnectionInformation, ConnectionDescriptor> connectionDescriptors =
+      new WeakKeyCache<>(MAX_CACHED_CONNECTIONS);
+  private final SqlFingerprinter fingerprinter = new SqlFingerprinter();
+  private final WeakKeyCache<StatementInformation, BatchCounter> batchCounters =
+      new WeakKeyCache<>(MAX_CACHED_CONNECTIONS);
+  private final WeakKeyCache<ResultSetInformation, FetchCounter> fetchCounters =
+      new WeakKeyCache<>(MAX_CACHED_CONNECTIONS);
+  /** Set once a connection tracing fetches is described, so that others skip result sets at once. */
+  private volatile boolean tracingFetches;
+  final WeakKeyCache<ConnectionInformation, TransactionSpan> transactions =
+      new WeakKeyCache<>(MAX_CACHED_CONNECTIONS);
+  /** Set once a transaction is traced, so that other setups never look transactions up. */
+  private volatile boolean tracingTransactions;
+  /** Statements executed under each parent span, released with the parent span. */
+  private final WeakKeyCache<Span, StatementRepetitions> repetitions =
+      new WeakKeyCache<>(MAX_CACHED_CONNECTIONS);
+  private volatile boolean trackingRepetitions;
+  /** Statements being compressed into a single span, by connection. */
+  final WeakKeyCache<ConnectionInformation, StatementRun> statementRuns =
+      new WeakKeyCache<>(MAX_CACHED_CONNECTIONS);
+  private volatile boolean compressingStatements;
+
+  TracingP6SpyListener(String defaultPeerService, boolean defaultTraceWithActiveSpanOnly, boolean defaultTraceWithStatementValues) {
+    this(new TracingOptionsResolver(defaultPeerService, defaultTraceWithActiveSpanOnly, defaultTraceWithStatementValues));
+  }
+
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver) {
+    this(optionsResolver, null);
   }
 
-  private final static String TRACE_WITH_ACTIVE_SPAN_ONLY_FINDER = "traceWithActiveSpanOnly=true";
-  private final static String TRACE_WITHOUT_ACTIVE_SPAN_ONLY_FINDER = "traceWithActiveSpanOnly=false";
-  private final static String TRACE_WITH_STATEMENT_VALUES = "traceWithStatementValues=true";
-  private final static String TRACE_WITHOUT_STATEMENT_VALUES = "traceWithStatementValues=false";
+  /**
+   * @param reporter the reporter of the spans of completed statements, {@code null} to report them
+   *        on the calling thread
+   */
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver, AsyncSpanReporter reporter) {
+    this(optionsResolver, reporter, null);
+  }
 
-  private final String defaultPeerService;
-  private final boolean defaultTraceWithActiveSpanOnly;
-  private final boolean defaultTraceWithStatementValues;
-  private final ThreadLocal<ScopedSpan> currentScope = new ThreadLocal<>();
+  /**
+   * @param latencies the histograms recording the latencies of statements, {@code null} not to
+   *        record them
+   */
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver, AsyncSpanReporter reporter,
+      StatementLatencies latencies) {
+    this(optionsResolver, reporter, latencies, null);
+  }
 
-  TracingP6SpyListener(String defaultPeerService, boolean defaultTraceWithActiveSpanOnly, boolean defaultTraceWithStatementValues) {
-    this.defaultPeerService = defaultPeerService;
-    this.defaultTraceWithActiveSpanOnly = defaultTraceWithActiveSpanOnly;
-    this.defaultTraceWithStatementValues = defaultTraceWithStatementValues;
+  /**
+   * @param monitor the counters of the work done by the listener, {@code null} not to count it
+   */
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver, AsyncSpanReporter reporter,
+      StatementLatencies latencies, TracingListenerMonitor monitor) {
+    this(optionsResolver, reporter, latencies, monitor, null);
+  }
+
+  /**
+   * @param jmxPrefix the {@code jmxPrefix} of the p6spy configuration, resolving its tracer in the
+   *        {@link TracerRegistry}
+   */
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver, AsyncSpanReporter reporter,
+      StatementLatencies latencies, TracingListenerMonitor monitor, String jmxPrefix) {
+    this(optionsResolver, reporter, latencies, monitor, jmxPrefix, null);
+  }
+
+  /**
+   * @param governor the governor keeping the overhead of tracing under budget, {@code null} to
+   *        trace regardless of the overhead
+   */
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver, AsyncSpanReporter reporter,
+      StatementLatencies latencies, TracingListenerMonitor monitor, String jmxPrefix,
+      OverheadGovernor governor) {
+    this(optionsResolver, reporter, latencies, monitor, jmxPrefix, governor, null);
+  }
+
+  /**
+   * @param explainer the explainer of the plans of slow queries, {@code null} not to explain them
+   */
+  TracingP6SpyListener(TracingOptionsResolver optionsResolver, AsyncSpanReporter reporter,
+      StatementLatencies latencies, TracingListenerMonitor monitor, String jmxPrefix,
+      OverheadGovernor governor, StatementExplainer explainer) {
+    this.optionsResolver = optionsResolver;
+    this.jmxPrefix = jmxPrefix;
+    this.reporter = reporter;
+    this.latencies = latencies;
+    this.monitor = monitor;
+    this.governor = governor;
+    this.explainer = explainer;
   }
 
   @Override public void onBeforeAnyExecute(StatementInformation statementInformation) {
-    onBefore("Execute", statementInformation);
+    onBefore("Execute", statementInformation.getConnectionInformation(), statementInformation);
   }
 
   @Override
   public void onAfterAnyExecute(StatementInformation statementInformation, long timeElapsedNanos,
       SQLException e) {
-    onAfter(e);
+    onAfter("Execute", statementInformation.getConnectionInformation(), statementInformation,
+        timeElapsedNanos, e, null);
   }
 
-  @Override public void onBeforeAnyAddBatch(StatementInformation statementInformation) {
-    onBefore("Batch", statementInformation);
+  /**
+   * Adding to a batch only buffers the statement in memory, so it is counted rather than traced.
+   */
+  @Override
+  public void onAfterAnyAddBatch(StatementInformation statementInformation, long timeElapsedNanos,
+      SQLException e) {
+    if (e != null) return;
+    if (monitor == null && governor == null) {
+      countBatchedStatement(statementInformation);
+      return;
+    }
+    final long startNanos = System.nanoTime();
+    try {
+      countBatchedStatement(statementInformation);
+    } finally {
+      recordAfter(startNanos, timeElapsedNanos);
+    }
+  }
+
+  private void countBatchedStatement(StatementInformation statementInformation) {
+    BatchCounter batchCounter = batchCounters.get(statementInformation);
+    if (batchCounter == null) {
+      batchCounter = new BatchCounter();
+      countEviction(batchCounters.put(statementInformation, batchCounter));
+    }
+    batchCounter.size++;
+  }
+
+  @Override public void onBeforeExecuteBatch(StatementInformation statementInformation) {
+    onBefore("Batch", statementInformation.getConnectionInformation(), statementInformation);
   }
 
   @Override
-  public void onAfterAnyAddBatch(StatementInformation statementInformation, long timeElapsedNanos,
+  public void onAfterExecuteBatch(StatementInformation statementInformation, long timeElapsedNanos,
+      int[] updateCounts, SQLException e) {
+    onAfter("Batch", statementInformation.getConnectionInformation(), statementInformation,
+        timeElapsedNanos, e, updateCounts);
+  }
+
+  @Override
+  public void onAfterStatementClose(StatementInformation statementInformation, SQLException e) {
+    batchCounters.remove(statementInformation);
+  }
+
+  /**
+   * Rows are only counted here, the {@code Fetch} span is reported once the result set is closed.
+   */
+  @Override
+  public void onAfterResultSetNext(ResultSetInformation resultSetInformation, long timeElapsedNanos,
+      boolean hasNext, SQLException e) {
+    if (!tracingFetches) return;
+    if (monitor == null && governor == null) {
+      countFetchedRow(resultSetInformation, timeElapsedNanos, hasNext, e);
+      return;
+    }
+    final long startNanos = System.nanoTime();
+    try {
+      countFetchedRow(resultSetInformation, timeElapsedNanos, hasNext, e);
+    } finally {
+      recordAfter(startNanos, timeElapsedNanos);
+    }
+  }
+
+  private void countFetchedRow(ResultSetInformation resultSetInformation, long timeElapsedNanos,
+      boolean hasNext, SQLException e) {
+    FetchCounter fetchCounter = fetchCounters.get(resultSetInformation);
+    if (fetchCounter == null) {
+      final ConnectionDescriptor connection =
+          connectionDescriptor(resultSetInformation.getConnectionInformation());
+      if (connection == null || !connection.options.traceResultSetFetch) return;
+      // a result set left out by the governor is remembered, so that its rows are not sampled again
+      fetchCounter = governor == null || governor.sample()
+          ? new FetchCounter(nowMicros() - TimeUnit.NANOSECONDS.toMicros(timeElapsedNanos))
+          : FetchCounter.DISABLED;
+      countEviction(fetchCounters.put(resultSetInformation, fetchCounter));
+    }
+    if (fetchCounter == FetchCounter.DISABLED) return;
+    fetchCounter.fetchNanos += timeElapsedNanos;
+    if (hasNext) {
+      fetchCounter.rows++;
+      if (fetchCounter.firstRowNanos < 0) {
+        fetchCounter.firstRowNanos = fetchCounter.fetchNanos;
+      }
+    }
+    fetchCounter.failed |= e != null;
+  }
+
+  @Override
+  public void onAfterResultSetClose(ResultSetInformation resultSetInformation, SQLException e) {
+    if (!tracingFetches) return;
+    final FetchCounter fetchCounter = fetchCounters.remove(resultSetInformation);
+    if (fetchCounter == null || fetchCounter == FetchCounter.DISABLED) return;
+    traceFetch(resultSetInformation.getStatementInformation(), fetchCounter);
+  }
+
+  @Override public void onBeforeCommit(ConnectionInformation connectionInformation) {
+    onBefore("Commit", connectionInformation, null);
+  }
+
+  @Override
+  public void onAfterCommit(ConnectionInformation connectionInformation, long timeElapsedNanos,
       SQLException e) {
-    onAfter(e);
+    onAfter("Commit", connectionInformation, null, timeElapsedNanos, e, null);
+    finishTransaction(connectionInformation, e);
   }
 
-  private void onBefore(String operationName, StatementInformation statementInformation) {
-    final Tracer tracer = GlobalTracer.get();
-    if (tracer == null) return;
-    final ScopedSpan scope = buildSpan(tracer, operationName, statementInformation);
-    currentScope.set(scope);
+  @Override public void onBeforeRollback(ConnectionInformation connectionInformation) {
+    onBefore("Rollback", connectionInformation, null);
   }
 
-  private void onAfter(SQLException e) {
-    ScopedSpan scopedSpan = currentScope.get();
-    if (scopedSpan == null) return;
-    Tags.ERROR.set(scopedSpan.span, e != null);
-    scopedSpan.close();
+  @Override
+  public void onAfterRollback(ConnectionInformation connectionInformation, long timeElapsedNanos,
+      SQLException e) {
+    onAfter("Rollback", connectionInformation, null, timeElapsedNanos, e, null);
+    finishTransaction(connectionInformation, e);
   }
 
-  private ScopedSpan buildSpan(Tracer tracer, String operationName, StatementInformation statementInformation) {
-    final Span activeSpan = tracer.scopeManager().activeSpan();
+  /**
+   * Keeps track of the auto-commit mode of the connection, finishing its transaction when the
+   * mode is switched back on, which commits it.
+   */
+  @Override
+  public void onAfterSetAutoCommit(ConnectionInformation connectionInformation,
+      boolean newAutoCommit, boolean currentAutoCommit, SQLException e) {
+    if (e != null) return;
+    final ConnectionDescriptor connection = connectionDescriptors.get(connectionInformation);
+    if (connection != null) {
+      connection.autoCommit = newAutoCommit;
+    }
+    if (newAutoCommit && !currentAutoCommit) {
+      finishTransaction(connectionInformation, null);
+    }
+  }
 
+  @Override
+  public void onAfterConnectionClose(ConnectionInformation connectionInformation, SQLException e) {
+    reportStatementRun(connectionInformation);
+    finishTransaction(connectionInformation, null);
+    connectionDescriptors.remove(connectionInformation);
+  }
+
+  /**
+   * @param statementInformation the executed statement, {@code null} for commits and rollbacks
+   */
+  private void onBefore(String operationName, ConnectionInformation connectionInformation,
+      StatementInformation statementInformation) {
+    if (monitor == null && governor == null) {
+      startExecution(operationName, connectionInformation, statementInformation);
+      return;
+    }
+    final long startNanos = System.nanoTime();
     try {
-      final String dbUrl =
-          statementInformation.getConnectionInformation().getConnection().getMetaData().getURL();
-      if (!allowTraceWithNoActiveSpan(dbUrl) && activeSpan == null) {
-        return ScopedSpan.NOOP;
+      startExecution(operationName, connectionInformation, statementInformation);
+    } finally {
+      final long listenerNanos = System.nanoTime() - startNanos;
+      if (monitor != null) {
+        monitor.beforeNanos.add(listenerNanos);
       }
-    } catch (SQLException e) {
-      return ScopedSpan.NOOP;
+      if (governor != null) {
+        governor.recordListener(listenerNanos);
+      }
+    }
+  }
+
+  /**
+   * @param updateCounts update counts of an executed batch, {@code null} for other statements
+   */
+  private void onAfter(String operationName, ConnectionInformation connectionInformation,
+      StatementInformation statementInformation, long timeElapsedNanos, SQLException e,
+      int[] updateCounts) {
+    if (monitor == null && governor == null) {
+      finishExecution(operationName, connectionInformation, statementInformation, timeElapsedNanos,
+          e, updateCounts);
+      return;
+    }
+    final long startNanos = System.nanoTime();
+    try {
+      finishExecution(operationName, connectionInformation, statementInformation, timeElapsedNanos,
+          e, updateCounts);
+    } finally {
+      recordAfter(startNanos, timeElapsedNanos);
+    }
+  }
+
+  /**
+   * Records the time spent in the listener since {@code startNanos}, after the database spent
+   * {@code timeElapsedNanos} on a statement, a batched statement or a fetched row.
+   */
+  private void recordAfter(long startNanos, long timeElapsedNanos) {
+    final long endNanos = System.nanoTime();
+    if (monitor != null) {
+      monitor.afterNanos.add(endNanos - startNanos);
+    }
+    if (governor != null) {
+      governor.recordListener(endNanos - startNanos);
+      governor.recordStatement(timeElapsedNanos, endNanos);
     }
+  }
+
+  /**
+   * Records the time spent off the threads executing statements, by the reporter or the run
+   * flusher, which is part of the overhead of tracing as well.
+   */
+  private void recordBackground(long startNanos) {
+    final long listenerNanos = System.nanoTime() - startNanos;
+    if (monitor != null) {
+      monitor.backgroundNanos.add(listenerNanos);
+    }
+    if (governor != null) {
+      governor.recordListener(listenerNanos);
+    }
+  }
+
+  private void startExecution(String operationName, ConnectionInformation connectionInformation,
+      StatementInformation statementInformation) {
+    final ExecutingSpan executingSpan =
+        buildSpan(operationName, connectionInformation, statementInformation);
+    if (executingSpan != ExecutingSpan.NOOP) {
+      executingSpans.put(executionKey(connectionInformation, statementInformation), executingSpan);
+    }
+  }
+
+  private void finishExecution(String operationName, ConnectionInformation connectionInformation,
+      StatementInformation statementInformation, long timeElapsedNanos, SQLException e,
+      int[] updateCounts) {
+    final BatchCounter batchCounter = updateCounts != null || e instanceof BatchUpdateException
+        ? batchCounters.remove(statementInformation) : null;
+    if (latencies != null && statementInformation != null) {
+      recordLatency(connectionInformation, statementInformation, timeElapsedNanos);
+    }
+    if (tracingTransactions) {
+      final TransactionSpan transaction = transactions.get(connectionInformation);
+      // the marker of unsampled transactions is shared, and never accounted
+      if (transaction != null && transaction.span != null) {
+        transaction.dbNanos += timeElapsedNanos;
+        if (statementInformation != null) {
+          transaction.statements++;
+        }
+      }
+    }
+    final ExecutingSpan executingSpan =
+        executingSpans.remove(executionKey(connectionInformation, statementInformation));
+    if (executingSpan == null) return;
+    if (executingSpan == ExecutingSpan.DEFERRED) {
+      traceCompletedStatement(operationName, connectionInformation, statementInformation,
+          timeElapsedNanos, e, updateCounts, batchCounter);
+      return;
+    }
+    if ("Batch".equals(operationName)) {
+      decorateBatch(executingSpan.span, executingSpan.connection.options,
+          batchCounter != null ? batchCounter.size : -1, batchUpdateCounts(updateCounts, e));
+    }
+    Tags.ERROR.set(executingSpan.span, e != null);
+    final StatementExplainer.Explain explain = explain(connectionInformation, statementInformation,
+        executingSpan.connection, timeElapsedNanos);
+    executingSpan.close();
+    // once the span is finished, so that the span of the plan always follows it
+    if (explain != null) {
+      explainer.submit(explain, executingSpan.span.context());
+    }
+  }
+
+  private void recordLatency(ConnectionInformation connectionInformation,
+      StatementInformation statementInformation, long timeElapsedNanos) {
+    final ConnectionDescriptor connection = connectionDescriptor(connectionInformation);
+    final String sql = statementInformation.getSql();
+    if (connection == null || sql == null) {
+      return;
+    }
+    latencies.record(connection.options.peerService, fingerprinter.fingerprint(sql), timeElapsedNanos);
+  }
+
+  /**
+   * Returns the tracer of the connection, {@code null} if it is a no-op tracer.
+   */
+  private Tracer tracer(ConnectionDescriptor connection) {
+    TracerRegistry.Resolution resolution = connection.tracer;
+    if (resolution == null || resolution.generation != TracerRegistry.generation()) {
+      resolution = TracerRegistry.resolve(jmxPrefix, connection.url);
+      connection.tracer = resolution;
+    }
+    return resolution.tracer();
+  }
+
+  /**
+   * Returns whether a span should be reported, given the {@code traceWithActiveSpanOnly} option and
+   * sampling.
+   */
+  private boolean shouldTrace(ConnectionDescriptor connection, Span activeSpan) {
+    if (connection.options.traceWithActiveSpanOnly && activeSpan == null) {
+      if (monitor != null) {
+        monitor.spansSkippedWithoutActiveSpan.increment();
+      }
+      return false;
+    }
+    if (!connection.options.sampler.sample()) {
+      if (monitor != null) {
+        monitor.noopSpans.increment();
+      }
+      return false;
+    }
+    return true;
+  }
+
+  private Span startSpan(Tracer.SpanBuilder spanBuilder) {
+    if (monitor != null) {
+      monitor.spansStarted.increment();
+    }
+    return spanBuilder.start();
+  }
+
+  private static Object executionKey(ConnectionInformation connectionInformation,
+      StatementInformation statementInformation) {
+    return statementInformation != null ? statementInformation : connectionInformation;
+  }
+
+  private ExecutingSpan buildSpan(String operationName,
+      ConnectionInformation connectionInformation, StatementInformation statementInformation) {
+    final ConnectionDescriptor connection = connectionDescriptor(connectionInformation);
+    final Tracer tracer = connection != null ? tracer(connection) : null;
+    if (tracer == null) {
+      if (monitor != null) {
+        monitor.noopSpans.increment();
+      }
+      return ExecutingSpan.NOOP;
+    }
+    final Span activeSpan = tracer.scopeManager().activeSpan();
+    if (activeSpan == null && connection.options.traceWithActiveSpanOnly) {
+      skipStatement(tracer, connectionInformation, statementInformation, connection);
+      return ExecutingSpan.NOOP;
+    }
+    if (governor != null && !governor.sample()) {
+      if (monitor != null) {
+        monitor.noopSpans.increment();
+      }
+      return ExecutingSpan.NOOP;
+    }
+    if (connection.options.traceTransactions && statementInformation != null) {
+      startTransaction(tracer, connectionInformation, connection, activeSpan);
+    }
+    if (connection.options.traceSlowerThanNanos > 0 || reporter != null
+        || connection.options.traceCompressStatements) {
+      // the span is built after the execution, only if the statement turns out to be slow, by the
+      // reporter, or once the run of identical statements it belongs to ends
+      return ExecutingSpan.DEFERRED;
+    }
+    if (!shouldTrace(connection, activeSpan)) {
+      return ExecutingSpan.NOOP;
+    }
+    final Span parentSpan = parentSpan(connectionInformation, activeSpan);
+    final StatementRepetitions.Repetition repetition =
+        countRepetition(parentSpan, statementInformation, connection.options);
 
     final Tracer.SpanBuilder spanBuilder = tracer
             .buildSpan(operationName)
             .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT);
+    if (parentSpan != null) {
+      spanBuilder.asChildOf(parentSpan);
+    }
+    final Span span = startSpan(spanBuilder);
+    decorateWithStatement(span, statementInformation, operationName, connection);
+    decorateRepetition(span, repetition, connection.options);
+    return new ExecutingSpan(span, connection);
+  }
+
+  /**
+   * Skips a statement executed without active span while the {@code traceWithActiveSpanOnly}
+   * option is set, which is how most statements of background jobs are executed. Nothing is
+   * rendered or allocated for them once the connection is described: their transaction is only
+   * looked up, the auto-commit mode of the connection being read once, and their latency is
+   * recorded into the histogram of their cached fingerprint.
+   */
+  private void skipStatement(Tracer tracer, ConnectionInformation connectionInformation,
+      StatementInformation statementInformation, ConnectionDescriptor connection) {
+    if (connection.options.traceTransactions && statementInformation != null) {
+      // remembers the transaction as not traced, once per transaction
+      startTransaction(tracer, connectionInformation, connection, null);
+    }
+    // the statement still ends the run of identical statements of the connection
+    reportStatementRun(connectionInformation);
+    if (monitor != null) {
+      monitor.spansSkippedWithoutActiveSpan.increment();
+    }
+  }
+
+  /**
+   * Starts tracing the transaction of a connection that is not in auto-commit mode, unless it is
+   * already traced. The transaction starts with its first statement rather than with
+   * {@code setAutoCommit(false)}, which is also how it starts again after a commit.
+   */
+  private void startTransaction(Tracer tracer, ConnectionInformation connectionInformation,
+      ConnectionDescriptor connection, Span activeSpan) {
+    if (autoCommit(connectionInformation, connection)
+        || transactions.get(connectionInformation) != null) {
+      return;
+    }
+    tracingTransactions = true;
+    if (!shouldTrace(connection, activeSpan)) {
+      finishEvictedTransaction(transactions.put(connectionInformation, TransactionSpan.UNSAMPLED));
+      return;
+    }
+    final Tracer.SpanBuilder spanBuilder = tracer
+        .buildSpan("Transaction")
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT);
     if (activeSpan != null) {
       spanBuilder.asChildOf(activeSpan);
     }
-    final Span span = spanBuilder.start();
-    decorate(span, statementInformation);
-    return new ScopedSpan(tracer.scopeManager().activate(span), span);
+    final Span span = startSpan(spanBuilder);
+    decorate(span, null, null, connection);
+    finishEvictedTransaction(transactions.put(connectionInformation, new TransactionSpan(span)));
   }
 
-  private void decorate(Span span, StatementInformation statementInformation) {
-    try {
-      final String dbUrl =
-              statementInformation.getConnectionInformation().getConnection().getMetaData().getURL();
-      final String extractedPeerName = extractPeerService(dbUrl);
-      final String peerName =
-              extractedPeerName != null && !extractedPeerName.isEmpty() ? extractedPeerName
-                      : defaultPeerService;
-      final String dbUser = statementInformation.getConnectionInformation()
-              .getConnection()
-              .getMetaData()
-              .getUserName();
-      final String dbInstance =
-              statementInformation.getConnectionInformation().getConnection().getCatalog();
-
-      Tags.COMPONENT.set(span, "java-p6spy");
-      if (!allowTraceWithStatementValues(dbUrl)) {
-        Tags.DB_STATEMENT.set(span, statementInformation.getSql());
-      } else {
-        Tags.DB_STATEMENT.set(span, statementInformation.getSqlWithValues());
-      }
-      if (!isNullOrEmpty(dbUrl)) {
-        span.setTag("peer.address", dbUrl);
-        Tags.DB_TYPE.set(span, extractDbType(dbUrl));
-      }
-      if (!isNullOrEmpty(dbInstance)) {
-        Tags.DB_INSTANCE.set(span, dbInstance);
-      }
-      if (!isNullOrEmpty(peerName)) {
-        Tags.PEER_SERVICE.set(span, peerName);
-      }
-      if (!isNullOrEmpty(dbUser)) {
-        Tags.DB_USER.set(span, dbUser);
-      }
-    } catch (SQLException ex) {
-      if(log.isLoggable(Level.WARNING)) {
-        log.warning("Failed to decorate the span[" + span + "].");
+  /**
+   * Returns the auto-commit mode of the connection, read from the connection the first time only
+   * and then tracked through {@link #onAfterSetAutoCommit}. A connection whose mode cannot be read
+   * is considered in auto-commit mode.
+   */
+  private static boolean autoCommit(ConnectionInformation connectionInformation,
+      ConnectionDescriptor connection) {
+    Boolean autoCommit = connection.autoCommit;
+    if (autoCommit == null) {
+      try {
+        autoCommit = connectionInformation.getConnection().getAutoCommit();
+      } catch (SQLException e) {
+        return true;
+      }
+      connection.autoCommit = autoCommit;
+    }
+    return autoCommit;
+  }
+
+  /**
+   * Finishes the span of a transaction evicted from the full cache of transactions, as its commit or
+   * rollback could no longer find it.
+   */
+  private void finishEvictedTransaction(TransactionSpan transaction) {
+    if (transaction == null) return;
+    countEviction(transaction);
+    if (transaction.span != null) {
+      if (trackingRepetitions) {
+        repetitions.remove(transaction.span);
+      }
+      transaction.span.finish();
+    }
+  }
+
+  private void finishTransaction(ConnectionInformation connectionInformation, SQLException e) {
+    if (!tracingTransactions) return;
+    final TransactionSpan transaction = transactions.remove(connectionInformation);
+    if (transaction == null || transaction.span == null) return;
+    if (trackingRepetitions) {
+      repetitions.remove(transaction.span);
+    }
+    transaction.span.setTag(DB_TRANSACTION_STATEMENTS, transaction.statements);
+    transaction.span.setTag(DB_TRANSACTION_NANOS, transaction.dbNanos);
+    Tags.ERROR.set(transaction.span, e != null);
+    transaction.span.finish();
+  }
+
+  /**
+   * Returns the span of the traced transaction of the connection if any, the active span otherwise.
+   */
+  private Span parentSpan(ConnectionInformation connectionInformation, Span activeSpan) {
+    if (tracingTransactions) {
+      final TransactionSpan transaction = transactions.get(connectionInformation);
+      if (transaction != null && transaction.span != null) {
+        return transaction.span;
       }
     }
+    return activeSpan;
+  }
+
+  /**
+   * Traces, once it completed, a statement whose span was deferred because of the
+   * {@code traceSlowerThanMillis} option, if it took longer than the threshold, to be reported
+   * by the {@link AsyncSpanReporter}, or to be compressed with the identical statements following
+   * it because of the {@code traceCompressStatements} option.
+   */
+  private void traceCompletedStatement(String operationName,
+      ConnectionInformation connectionInformation, StatementInformation statementInformation,
+      long timeElapsedNanos, SQLException e, int[] updateCounts, BatchCounter batchCounter) {
+    final boolean compressed = "Execute".equals(operationName);
+    if (!compressed) {
+      // commits, rollbacks and batches end the run of the connection
+      reportStatementRun(connectionInformation);
+    }
+    final ConnectionDescriptor connection = connectionDescriptor(connectionInformation);
+    if (connection == null) {
+      return;
+    }
+    final ResolvedTracingOptions options = connection.options;
+    final boolean slow = timeElapsedNanos >= options.traceSlowerThanNanos;
+    if (!slow && options.traceNPlusOneThreshold <= 0 && !options.traceCompressStatements) {
+      return;
+    }
+    final Tracer tracer = tracer(connection);
+    if (tracer == null) {
+      return;
+    }
+    final Span activeSpan = tracer.scopeManager().activeSpan();
+    final Span parentSpan = parentSpan(connectionInformation, activeSpan);
+    if (compressed && options.traceCompressStatements && statementInformation.getSql() != null) {
+      compressStatement(tracer, connectionInformation, connection, statementInformation,
+          activeSpan, parentSpan, timeElapsedNanos, e);
+      return;
+    }
+    // sampled before being counted, fast statements being only counted by their hashes, as N+1
+    // patterns are mostly made of them
+    final boolean traced = slow && shouldTrace(connection, activeSpan);
+    final StatementRepetitions.Repetition repetition = traced || !slow
+        ? countRepetition(parentSpan, statementInformation, options) : null;
+    if (!traced) {
+      return;
+    }
+
+    final long finishMicros = nowMicros();
+    final CompletedStatement completedStatement = new CompletedStatement(tracer, operationName,
+        connection, statementSql(statementInformation, operationName),
+        // bound values are read now, the statement being reused once it completed, and rendered
+        // along with the span
+        statementInformation != null ? bind(statementInformation, options) : null,
+        parentSpan, finishMicros - TimeUnit.NANOSECONDS.toMicros(timeElapsedNanos), finishMicros,
+        e != null, batchCounter != null ? batchCounter.size : -1,
+        batchUpdateCounts(updateCounts, e), repetition, null,
+        explain(connectionInformation, statementInformation, connection, timeElapsedNanos));
+    report(completedStatement);
+  }
+
+  /**
+   * Adds a statement to the run of identical statements of the connection, reporting the previous
+   * run if the statement does not continue it. A new run is reported at the latest
+   * {@link StatementRun#MAX_PENDING_MILLIS} after it started.
+   */
+  private void compressStatement(Tracer tracer, final ConnectionInformation connectionInformation,
+      ConnectionDescriptor connection, StatementInformation statementInformation, Span activeSpan,
+      Span parentSpan, long timeElapsedNanos, SQLException e) {
+    final String sql = statementInformation.getSql();
+    final String fingerprint = fingerprinter.fingerprint(sql).fingerprint;
+    final long finishMicros = nowMicros();
+    StatementRun run = statementRuns.get(connectionInformation);
+    if (run != null && run.continuedBy(tracer, "Execute", fingerprint, parentSpan)) {
+      synchronized (run) {
+        if (!run.isClosed()) {
+          run.add(finishMicros, timeElapsedNanos, e != null, run.traced
+              ? countRepetition(parentSpan, statementInformation, connection.options) : null);
+          return;
+        }
+      }
+    }
+    if (run != null) {
+      reportStatementRun(connectionInformation, run);
+    }
+    compressingStatements = true;
+    final boolean traced = shouldTrace(connection, activeSpan);
+    final StatementRun newRun = new StatementRun(tracer, "Execute", connection, fingerprint, sql,
+        traced ? bind(statementInformation, connection.options) : null, parentSpan,
+        finishMicros - TimeUnit.NANOSECONDS.toMicros(timeElapsedNanos), traced);
+    newRun.add(finishMicros, timeElapsedNanos, e != null,
+        traced ? countRepetition(parentSpan, statementInformation, connection.options) : null);
+    final StatementRun evicted = statementRuns.put(connectionInformation, newRun);
+    if (evicted != null) {
+      // too many connections to keep their runs, the oldest one is reported now
+      countEviction(evicted);
+      if (evicted.close()) {
+        reportStatementRun(evicted);
+      }
+    }
+    newRun.flushLater(new Runnable() {
+      @Override
+      public void run() {
+        final long startNanos = System.nanoTime();
+        try {
+          reportStatementRun(connectionInformation, newRun);
+        } finally {
+          recordBackground(startNanos);
+        }
+      }
+    });
+  }
+
+  private void reportStatementRun(ConnectionInformation connectionInformation) {
+    if (!compressingStatements) return;
+    final StatementRun run = statementRuns.remove(connectionInformation);
+    if (run != null && run.close()) {
+      reportStatementRun(run);
+    }
+  }
+
+  /**
+   * Ends the run unless it already ended, from the thread of its connection or the flusher.
+   */
+  private void reportStatementRun(ConnectionInformation connectionInformation, StatementRun run) {
+    if (run.close()) {
+      statementRuns.remove(connectionInformation, run);
+      reportStatementRun(run);
+    }
+  }
+
+  private void reportStatementRun(StatementRun run) {
+    if (!run.traced || run.maxNanos < run.connection.options.traceSlowerThanNanos) {
+      return;
+    }
+    report(new CompletedStatement(run.tracer, run.operationName, run.connection, run.sql,
+        run.count == 1 ? run.boundStatement : null, run.parentSpan, run.startMicros,
+        run.finishMicros, run.errors > 0, -1, null, run.repetition, run, null));
+  }
+
+  private void report(CompletedStatement completedStatement) {
+    if (reporter != null) {
+      reporter.submit(completedStatement);
+    } else {
+      completedStatement.finish();
+    }
+  }
+
+  /**
+   * Prepares the explanation of the plan of a slow query, returning {@code null} if the statement
+   * is not slow enough, is not a query the database can explain, or was explained recently. The
+   * placeholders of a prepared statement are explained as is by the databases supporting it, its
+   * values being bound again for the others only when they are traced, as the plan may show them.
+   */
+  private StatementExplainer.Explain explain(ConnectionInformation connectionInformation,
+      StatementInformation statementInformation, ConnectionDescriptor connection,
+      long timeElapsedNanos) {
+    if (explainer == null || statementInformation == null
+        || timeElapsedNanos < explainer.slowerThanNanos()) {
+      return null;
+    }
+    final String sql = statementInformation.getSql();
+    final ResolvedTracingOptions options = connection.options;
+    final String explainSql = StatementExplainer.explainStatement(options.dbType, sql);
+    if (explainSql == null) {
+      return null;
+    }
+    final String fingerprint = fingerprinter.fingerprint(sql).fingerprint;
+    final Tracer tracer = tracer(connection);
+    if (tracer == null || explainer.explainedRecently(fingerprint)) {
+      return null;
+    }
+    final Object[] boundValues = StatementRenderer.boundValues(statementInformation);
+    Object[] values = null;
+    if (boundValues == null) {
+      // the values of callable statements cannot be bound again
+      return null;
+    } else if (boundValues.length > 0 && !StatementExplainer.explainsPlaceholders(options.dbType)) {
+      if (!options.traceWithStatementValues || options.redactor != null
+          || !StatementExplainer.bindable(boundValues)) {
+        return null;
+      }
+      values = boundValues;
+    }
+    return new StatementExplainer.Explain(tracer, options.dbType, fingerprint, explainSql, values,
+        connectionInformation.getDriver(), connection.url, connection.user);
+  }
+
+  /**
+   * Reports the reading of a closed result set, from the first {@code next()} to its closing.
+   */
+  private void traceFetch(StatementInformation statementInformation, FetchCounter fetchCounter) {
+    final ConnectionDescriptor connection =
+        connectionDescriptor(statementInformation.getConnectionInformation());
+    if (connection == null || fetchCounter.fetchNanos < connection.options.traceSlowerThanNanos) {
+      return;
+    }
+    final Tracer tracer = tracer(connection);
+    if (tracer == null) {
+      return;
+    }
+    final Span activeSpan = tracer.scopeManager().activeSpan();
+    if (!shouldTrace(connection, activeSpan)) {
+      return;
+    }
+
+    final Tracer.SpanBuilder spanBuilder = tracer
+            .buildSpan("Fetch")
+            .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+            .withStartTimestamp(fetchCounter.startMicros);
+    final Span parentSpan = parentSpan(statementInformation.getConnectionInformation(), activeSpan);
+    if (parentSpan != null) {
+      spanBuilder.asChildOf(parentSpan);
+    }
+    final Span span = startSpan(spanBuilder);
+    decorateWithStatement(span, statementInformation, "Fetch", connection);
+    span.setTag(DB_FETCH_ROWS, fetchCounter.rows);
+    span.setTag(DB_FETCH_NANOS, fetchCounter.fetchNanos);
+    if (fetchCounter.firstRowNanos >= 0) {
+      span.setTag(DB_FETCH_FIRST_ROW_NANOS, fetchCounter.firstRowNanos);
+    }
+    Tags.ERROR.set(span, fetchCounter.failed);
+    span.finish(nowMicros());
+  }
+
+  /**
+   * @param statementInformation the statement of the span, {@code null} for the commits and
+   *        rollbacks of a connection
+   */
+  private void decorateWithStatement(Span span, StatementInformation statementInformation,
+      String operationName, ConnectionDescriptor connection) {
+    decorate(span, statementSql(statementInformation, operationName),
+        statementInformation != null ? sqlWithValues(statementInformation, connection.options) : null,
+        connection);
+  }
+
+  /**
+   * @param sql the statement of the span, {@code null} for transactions
+   * @param sqlWithValues the statement rendered with its bound values, {@code null} unless traced
+   */
+  private void decorate(Span span, String sql, String sqlWithValues, ConnectionDescriptor connection) {
+    Tags.COMPONENT.set(span, "java-p6spy");
+    final ResolvedTracingOptions options = connection.options;
+    if (sql != null) {
+      decorateStatement(span, sql, sqlWithValues, options);
+    }
+    if (!isNullOrEmpty(connection.url)) {
+      span.setTag("peer.address", connection.url);
+    }
+    if (!isNullOrEmpty(options.dbType)) {
+      Tags.DB_TYPE.set(span, options.dbType);
+    }
+    if (!isNullOrEmpty(connection.catalog)) {
+      Tags.DB_INSTANCE.set(span, connection.catalog);
+    }
+    if (!isNullOrEmpty(options.peerService)) {
+      Tags.PEER_SERVICE.set(span, options.peerService);
+    }
+    if (!isNullOrEmpty(connection.user)) {
+      Tags.DB_USER.set(span, connection.user);
+    }
+  }
+
+  private void decorateStatement(Span span, String sql, String sqlWithValues,
+      ResolvedTracingOptions options) {
+    final SqlFingerprint fingerprint =
+        options.traceStatementFingerprint ? fingerprinter.fingerprint(sql) : null;
+    if (sqlWithValues != null) {
+      Tags.DB_STATEMENT.set(span, sqlWithValues);
+    } else if (fingerprint != null) {
+      Tags.DB_STATEMENT.set(span, StatementRenderer.truncate(fingerprint.normalizedSql, options.traceMaxStatementLength));
+    } else {
+      Tags.DB_STATEMENT.set(span, StatementRenderer.truncate(sql, options.traceMaxStatementLength));
+    }
+    if (fingerprint != null) {
+      span.setTag(DB_STATEMENT_FINGERPRINT, fingerprint.fingerprint);
+    }
   }
 
-  private static String extractDbType(String realUrl) {
-    return realUrl.split(":")[1];
+  /**
+   * Counts the execution of a statement under its parent span, returning {@code null} if N+1
+   * detection is disabled, for commits and rollbacks, and for statements without parent span.
+   */
+  private StatementRepetitions.Repetition countRepetition(Span parentSpan,
+      StatementInformation statementInformation, ResolvedTracingOptions options) {
+    if (options.traceNPlusOneThreshold <= 0 || parentSpan == null || statementInformation == null
+        || statementInformation.getSql() == null) {
+      return null;
+    }
+    trackingRepetitions = true;
+    StatementRepetitions statements = repetitions.get(parentSpan);
+    if (statements == null) {
+      statements = new StatementRepetitions();
+      countEviction(repetitions.put(parentSpan, statements));
+    }
+    return statements.count(fingerprinter.fingerprint(statementInformation.getSql()).hash,
+        StatementRenderer.sqlWithValuesHash(statementInformation));
   }
 
-  private static String extractPeerService(String url) {
-    if (url != null) {
-      Matcher matcher = URL_PEER_SERVICE_FINDER.matcher(url);
-      if (matcher.find() && matcher.groupCount() == 1) {
-        return matcher.group(1);
+  private static void decorateRepetition(Span span, StatementRepetitions.Repetition repetition,
+      ResolvedTracingOptions options) {
+    if (repetition == null) {
+      return;
+    }
+    if (repetition.sameFingerprint >= options.traceNPlusOneThreshold) {
+      span.setTag(DB_N_PLUS_ONE, true);
+      span.setTag(DB_N_PLUS_ONE_COUNT, repetition.sameFingerprint);
+    }
+    if (repetition.sameValues > 1) {
+      span.setTag(DB_DUPLICATE, true);
+      span.setTag(DB_DUPLICATE_COUNT, repetition.sameValues);
+    }
+  }
+
+  /**
+   * Tags the span of an executed batch with its size, the update count of each of its statements
+   * and the number of statements that failed.
+   *
+   * @param batchSize number of statements added to the batch, -1 if unknown
+   * @param updateCounts update counts of the batch, {@code null} if unknown
+   */
+  private static void decorateBatch(Span span, ResolvedTracingOptions options, int batchSize,
+      int[] updateCounts) {
+    if (batchSize >= 0) {
+      span.setTag(DB_BATCH_SIZE, batchSize);
+    }
+    if (updateCounts == null) {
+      return;
+    }
+    final int maxValues = options.traceMaxBatchValues;
+    final StringBuilder counts = new StringBuilder();
+    int failures = 0;
+    for (int i = 0; i < updateCounts.length; i++) {
+      if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+        failures++;
+      }
+      if (maxValues <= 0 || i < maxValues) {
+        if (i > 0) {
+          counts.append(',');
+        }
+        counts.append(updateCounts[i]);
+      } else if (i == maxValues) {
+        counts.append(',').append(StatementRenderer.TRUNCATION_MARKER);
       }
     }
-    return "";
+    span.setTag(DB_BATCH_UPDATE_COUNTS, StatementRenderer.truncate(counts.toString(), options.traceMaxStatementLength));
+    span.setTag(DB_BATCH_FAILURES, failures);
   }
 
-  private boolean allowTraceWithNoActiveSpan(String url) {
-    final OptionalBoolean withActiveSpanOnly = withActiveSpanOnly(url);
-    return withActiveSpanOnly != OptionalBoolean.OPTION_NOT_FOUND && withActiveSpanOnly == OptionalBoolean.FALSE || withActiveSpanOnly == OptionalBoolean.OPTION_NOT_FOUND && !defaultTraceWithActiveSpanOnly;
+  /**
+   * Returns the update counts of a batch, read from the exception if the batch failed.
+   */
+  private static int[] batchUpdateCounts(int[] updateCounts, SQLException e) {
+    if (updateCounts == null && e instanceof BatchUpdateException) {
+      return ((BatchUpdateException) e).getUpdateCounts();
+    }
+    return updateCounts;
   }
 
-  private boolean allowTraceWithStatementValues(String url) {
-    final OptionalBoolean withStatementValues = withStatementValues(url);
-    return withStatementValues != OptionalBoolean.OPTION_NOT_FOUND && withStatementValues == OptionalBoolean.TRUE || withStatementValues == OptionalBoolean.OPTION_NOT_FOUND && defaultTraceWithStatementValues;
+  /**
+   * Returns the SQL of the statement, or {@code COMMIT} or {@code ROLLBACK} for the commits and
+   * rollbacks of a connection.
+   */
+  private static String statementSql(StatementInformation statementInformation, String operationName) {
+    if (statementInformation != null) {
+      return statementInformation.getSql();
+    }
+    return operationName != null ? operationName.toUpperCase(Locale.ROOT) : null;
+  }
+
+  private static String sqlWithValues(StatementInformation statementInformation,
+      ResolvedTracingOptions options) {
+    if (!options.traceWithStatementValues) {
+      return null;
+    }
+    return StatementRenderer.sqlWithValues(statementInformation, options.traceMaxStatementLength,
+        options.traceMaxBatchValues, options.redactor);
   }
 
-  private static OptionalBoolean withActiveSpanOnly(String url) {
-    return withOrWithout(url, TRACE_WITH_ACTIVE_SPAN_ONLY_FINDER, TRACE_WITHOUT_ACTIVE_SPAN_ONLY_FINDER);
+  /**
+   * Captures the values of the statement, to be rendered along with its span, {@code null} unless
+   * they are traced.
+   */
+  private static BoundStatement bind(StatementInformation statementInformation,
+      ResolvedTracingOptions options) {
+    return options.traceWithStatementValues
+        ? StatementRenderer.bind(statementInformation, options.redactor) : null;
   }
 
-  private static OptionalBoolean withStatementValues(String url) {
-    return withOrWithout(url, TRACE_WITH_STATEMENT_VALUES, TRACE_WITHOUT_STATEMENT_VALUES);
+  private static String sqlWithValues(BoundStatement boundStatement,
+      ResolvedTracingOptions options) {
+    return boundStatement != null ? StatementRenderer.sqlWithValues(boundStatement,
+        options.traceMaxStatementLength, options.traceMaxBatchValues, options.redactor) : null;
   }
 
-  private static OptionalBoolean withOrWithout(String url, String with, String without) {
-    if(url == null) {
-      return OptionalBoolean.OPTION_NOT_FOUND;
+  /**
+   * Returns the cached descriptor of the connection, resolving it through the connection meta data
+   * the first time the connection is seen. Returns {@code null} if the url cannot be read.
+   */
+  private ConnectionDescriptor connectionDescriptor(ConnectionInformation connectionInformation) {
+    ConnectionDescriptor descriptor = connectionDescriptors.get(connectionInformation);
+    if (descriptor != null) {
+      if (monitor != null) {
+        monitor.metadataCacheHits.increment();
+      }
+      final int optionsGeneration = optionsResolver.generation();
+      if (descriptor.optionsGeneration != optionsGeneration) {
+        // the options were reloaded since the connection was described
+        descriptor = descriptor.withOptions(optionsResolver.resolve(descriptor.url), optionsGeneration);
+        if (descriptor.options.traceResultSetFetch) {
+          tracingFetches = true;
+        }
+        countEviction(connectionDescriptors.put(connectionInformation, descriptor));
+      }
+      return descriptor;
+    }
+    if (monitor != null) {
+      monitor.metadataCacheMisses.increment();
     }
-    if(url.contains(with) && url.contains(without)) {
+
+    final Connection connection = connectionInformation.getConnection();
+    final String dbUrl;
+    try {
+      dbUrl = connection.getMetaData().getURL();
+    } catch (SQLException e) {
+      if (monitor != null) {
+        monitor.metadataFailures.increment();
+      }
+      return null;
+    }
+
+    boolean complete = true;
+    String dbUser = null;
+    String dbInstance = null;
+    try {
+      dbUser = connection.getMetaData().getUserName();
+      dbInstance = connection.getCatalog();
+    } catch (SQLException e) {
+      complete = false;
+      if (monitor != null) {
+        monitor.metadataFailures.increment();
+      }
       if(log.isLoggable(Level.WARNING)) {
-        log.warning("jdbc url contains contradictory " + with + " and " + without + " options. Defaulting to no options");
+        log.warning("Failed to read the meta data of the connection to [" + dbUrl + "].");
       }
-      return OptionalBoolean.OPTION_NOT_FOUND;
     }
-    if(url.contains(with)) {
-      return OptionalBoolean.TRUE;
-    } else if (url.contains(without)) {
-      return OptionalBoolean.FALSE;
+
+    final int optionsGeneration = optionsResolver.generation();
+    descriptor = new ConnectionDescriptor(dbUrl, dbUser, dbInstance, optionsResolver.resolve(dbUrl),
+        optionsGeneration);
+    if (descriptor.options.traceResultSetFetch) {
+      tracingFetches = true;
+    }
+    // an incomplete descriptor is used once but not cached, so that a transient failure is retried
+    if (complete) {
+      countEviction(connectionDescriptors.put(connectionInformation, descriptor));
     }
-    return OptionalBoolean.OPTION_NOT_FOUND;
+    return descriptor;
+  }
+
+  private void countEviction(Object evicted) {
+    if (evicted != null && monitor != null) {
+      monitor.cacheEvictions.increment();
+    }
+  }
+
+  private static long nowMicros() {
+    return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
   }
 
   private static boolean isNullOrEmpty(String s) {
     return s == null || s.isEmpty();
   }
 
-  private final static class ScopedSpan implements Closeable {
-    static final ScopedSpan NOOP = new ScopedSpan(NoopScopeManager.NoopScope.INSTANCE, NoopSpan.INSTANCE);
-    final Scope scope;
+  /**
+   * Span of a statement being executed. It is not activated, unlike the spans of earlier versions:
+   * nothing runs within the execution of a statement, and scopes closed out of order, as
+   * interleaved statements do, would leave a finished span active on the thread.
+   */
+  private final static class ExecutingSpan implements Closeable {
+    static final ExecutingSpan NOOP = new ExecutingSpan(NoopSpan.INSTANCE, null);
+    /** Marks a statement whose span, if any, is built once the statement completes. */
+    static final ExecutingSpan DEFERRED = new ExecutingSpan(NoopSpan.INSTANCE, null);
     final Span span;
+    final ConnectionDescriptor connection;
 
-    private ScopedSpan(Scope scope, Span span) {
-      this.scope = scope;
+    private ExecutingSpan(Span span, ConnectionDescriptor connection) {
       this.span = span;
+      this.connection = connection;
     }
 
     @Override
     public void close() {
-      scope.close();
       span.finish();
     }
   }
+
+  /**
+   * What is needed to build the span of a completed statement, captured on the calling thread so
+   * that the span can be built and finished by the {@link AsyncSpanReporter}.
+   */
+  private final class CompletedStatement implements Runnable {
+    final Tracer tracer;
+    final String operationName;
+    final ConnectionDescriptor connection;
+    final String sql;
+    /** The values of the statement, {@code null} unless traced. */
+    final BoundStatement boundStatement;
+    final Span parentSpan;
+    final long startMicros;
+    final long finishMicros;
+    final boolean error;
+    final int batchSize;
+    final int[] updateCounts;
+    final StatementRepetitions.Repetition repetition;
+    /** Statements compressed into the span, {@code null} for a single statement. */
+    final StatementRun run;
+    /** Explanation of the plan of the statement, {@code null} not to explain it. */
+    final StatementExplainer.Explain explain;
+
+    CompletedStatement(Tracer tracer, String operationName, ConnectionDescriptor connection,
+        String sql, BoundStatement boundStatement, Span parentSpan, long startMicros, long finishMicros,
+        boolean error, int batchSize, int[] updateCounts,
+        StatementRepetitions.Repetition repetition, StatementRun run,
+        StatementExplainer.Explain explain) {
+      this.tracer = tracer;
+      this.operationName = operationName;
+      this.connection = connection;
+      this.sql = sql;
+      this.boundStatement = boundStatement;
+      this.parentSpan = parentSpan;
+      this.startMicros = startMicros;
+      this.finishMicros = finishMicros;
+      this.error = error;
+      this.batchSize = batchSize;
+      this.updateCounts = updateCounts;
+      this.repetition = repetition;
+      this.run = run;
+      this.explain = explain;
+    }
+
+    /**
+     * Builds and finishes the span on the reporter thread.
+     */
+    @Override
+    public void run() {
+      final long startNanos = System.nanoTime();
+      try {
+        finish();
+      } finally {
+        recordBackground(startNanos);
+      }
+    }
+
+    void finish() {
+      final Tracer.SpanBuilder spanBuilder = tracer
+              .buildSpan(operationName)
+              .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+              .withStartTimestamp(startMicros);
+      if (parentSpan != null) {
+        spanBuilder.asChildOf(parentSpan);
+      }
+      final Span span = startSpan(spanBuilder);
+      decorate(span, sql, sqlWithValues(boundStatement, connection.options), connection);
+      decorateRepetition(span, repetition, connection.options);
+      if (run != null && run.count > 1) {
+        span.setTag(DB_STATEMENT_COUNT, run.count);
+        span.setTag(DB_STATEMENT_TOTAL_NANOS, run.totalNanos);
+        span.setTag(DB_STATEMENT_MIN_NANOS, run.minNanos);
+        span.setTag(DB_STATEMENT_MAX_NANOS, run.maxNanos);
+        span.setTag(DB_STATEMENT_ERRORS, run.errors);
+      }
+      if ("Batch".equals(operationName)) {
+        decorateBatch(span, connection.options, batchSize, updateCounts);
+      }
+      Tags.ERROR.set(span, error);
+      span.finish(finishMicros);
+      if (explain != null) {
+        explainer.submit(explain, span.context());
+      }
+    }
+  }
 }
@@ -15,14 +15,52 @@ package io.opentracing.contrib.p6spy;
 
 import com.p6spy.engine.spy.P6SpyOptions;
 import com.p6spy.engine.spy.option.P6OptionsRepository;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
 
 class TracingP6SpyOptions extends P6SpyOptions {
+  private static final Logger log = Logger.getLogger(TracingP6SpyOptions.class.getName());
+  private static final String PROFILE_PREFIX = "tracing.profile.";
+  private static final String PROFILE_URL_PREFIX = "urlPrefix";
   private static final String PEER_SERVICE = "tracingPeerService";
   private static final String TRACE_WITH_ACTIVE_SPAN_ONLY = "traceWithActiveSpanOnly";
   private static final String TRACE_WITH_STATEMENT_VALUES = "traceWithStatementValues";
+  private static final String TRACE_SAMPLE_RATE = "traceSampleRate";
+  private static final String TRACE_MAX_SPANS_PER_SECOND = "traceMaxSpansPerSecond";
+  private static final String TRACE_SLOWER_THAN_MILLIS = "traceSlowerThanMillis";
+  private static final String TRACE_STATEMENT_FINGERPRINT = "traceStatementFingerprint";
+  private static final String TRACE_MAX_STATEMENT_LENGTH = "traceMaxStatementLength";
+  private static final String TRACE_MAX_BATCH_VALUES = "traceMaxBatchValues";
+  private static final String TRACE_RESULT_SET_FETCH = "traceResultSetFetch";
+  private static final String TRACE_TRANSACTIONS = "traceTransactions";
+  private static final String TRACE_ASYNC_QUEUE_SIZE = "traceAsyncQueueSize";
+  private static final String TRACE_ASYNC_OVERFLOW_POLICY = "traceAsyncOverflowPolicy";
+  private static final String TRACE_LATENCY_HISTOGRAMS = "traceLatencyHistograms";
+  private static final String TRACE_MONITORING = "traceMonitoring";
+  private static final String TRACE_OVERHEAD_BUDGET_PERCENT = "traceOverheadBudgetPercent";
+  private static final String TRACE_N_PLUS_ONE_THRESHOLD = "traceNPlusOneThreshold";
+  private static final String TRACE_COMPRESS_STATEMENTS = "traceCompressStatements";
+  private static final String TRACE_REDACT_COLUMNS = "traceRedactColumns";
+  private static final String TRACE_REDACT_TABLES = "traceRedactTables";
+  private static final String TRACE_REDACT_PARAMETERS = "traceRedactParameters";
+  private static final String TRACE_REDACT_VALUE_PATTERN = "traceRedactValuePattern";
+  private static final String TRACE_EXPLAIN_SLOWER_THAN_MILLIS = "traceExplainSlowerThanMillis";
+  private static final String TRACE_EXPLAIN_INTERVAL_SECONDS = "traceExplainIntervalSeconds";
+  private static final String TRACE_EXPLAIN_USER = "traceExplainUser";
+  private static final String TRACE_EXPLAIN_PASSWORD = "traceExplainPassword";
+  private static final long DEFAULT_EXPLAIN_INTERVAL_SECONDS = 600;
 
   private final P6OptionsRepository optionsRepository;
+  /** Options of the profiles, from all the sources of options, sorted by key. */
+  private final Map<String, String> profileOptions = new TreeMap<>();
+  private List<TracingProfile> profiles = Collections.emptyList();
+  private volatile double traceSampleRate = 1.0;
 
   TracingP6SpyOptions(P6OptionsRepository optionsRepository) {
     super(optionsRepository);
@@ -35,6 +73,92 @@ class TracingP6SpyOptions extends P6SpyOptions {
     optionsRepository.set(String.class, PEER_SERVICE, options.get(PEER_SERVICE));
     optionsRepository.set(Boolean.class, TRACE_WITH_ACTIVE_SPAN_ONLY, options.get(TRACE_WITH_ACTIVE_SPAN_ONLY));
     optionsRepository.set(Boolean.class, TRACE_WITH_STATEMENT_VALUES, options.get(TRACE_WITH_STATEMENT_VALUES));
+    // the repository cannot parse doubles, the rate is parsed once here and kept in the repository
+    // only to notify its changes
+    traceSampleRate = TracingOptionsResolver.parseSampleRate(options.get(TRACE_SAMPLE_RATE), 1.0);
+    optionsRepository.set(String.class, TRACE_SAMPLE_RATE, options.get(TRACE_SAMPLE_RATE));
+    optionsRepository.set(Long.class, TRACE_MAX_SPANS_PER_SECOND, options.get(TRACE_MAX_SPANS_PER_SECOND));
+    optionsRepository.set(Long.class, TRACE_SLOWER_THAN_MILLIS, options.get(TRACE_SLOWER_THAN_MILLIS));
+    optionsRepository.set(Boolean.class, TRACE_STATEMENT_FINGERPRINT, options.get(TRACE_STATEMENT_FINGERPRINT));
+    optionsRepository.set(Integer.class, TRACE_MAX_STATEMENT_LENGTH, options.get(TRACE_MAX_STATEMENT_LENGTH));
+    optionsRepository.set(Integer.class, TRACE_MAX_BATCH_VALUES, options.get(TRACE_MAX_BATCH_VALUES));
+    optionsRepository.set(Boolean.class, TRACE_RESULT_SET_FETCH, options.get(TRACE_RESULT_SET_FETCH));
+    optionsRepository.set(Boolean.class, TRACE_TRANSACTIONS, options.get(TRACE_TRANSACTIONS));
+    optionsRepository.set(Integer.class, TRACE_ASYNC_QUEUE_SIZE, options.get(TRACE_ASYNC_QUEUE_SIZE));
+    optionsRepository.set(String.class, TRACE_ASYNC_OVERFLOW_POLICY, options.get(TRACE_ASYNC_OVERFLOW_POLICY));
+    optionsRepository.set(Boolean.class, TRACE_LATENCY_HISTOGRAMS, options.get(TRACE_LATENCY_HISTOGRAMS));
+    optionsRepository.set(Boolean.class, TRACE_MONITORING, options.get(TRACE_MONITORING));
+    optionsRepository.set(Integer.class, TRACE_OVERHEAD_BUDGET_PERCENT, options.get(TRACE_OVERHEAD_BUDGET_PERCENT));
+    optionsRepository.set(Integer.class, TRACE_N_PLUS_ONE_THRESHOLD, options.get(TRACE_N_PLUS_ONE_THRESHOLD));
+    optionsRepository.set(Boolean.class, TRACE_COMPRESS_STATEMENTS, options.get(TRACE_COMPRESS_STATEMENTS));
+    optionsRepository.set(String.class, TRACE_REDACT_COLUMNS, options.get(TRACE_REDACT_COLUMNS));
+    optionsRepository.set(String.class, TRACE_REDACT_TABLES, options.get(TRACE_REDACT_TABLES));
+    optionsRepository.set(String.class, TRACE_REDACT_PARAMETERS, options.get(TRACE_REDACT_PARAMETERS));
+    optionsRepository.set(String.class, TRACE_REDACT_VALUE_PATTERN, options.get(TRACE_REDACT_VALUE_PATTERN));
+    optionsRepository.set(Long.class, TRACE_EXPLAIN_SLOWER_THAN_MILLIS, options.get(TRACE_EXPLAIN_SLOWER_THAN_MILLIS));
+    optionsRepository.set(Long.class, TRACE_EXPLAIN_INTERVAL_SECONDS, options.get(TRACE_EXPLAIN_INTERVAL_SECONDS));
+    optionsRepository.set(String.class, TRACE_EXPLAIN_USER, options.get(TRACE_EXPLAIN_USER));
+    optionsRepository.set(String.class, TRACE_EXPLAIN_PASSWORD, options.get(TRACE_EXPLAIN_PASSWORD));
+    // loaded once per source of options, each one adding to the profiles
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      if (option.getKey().startsWith(PROFILE_PREFIX) && option.getValue() != null) {
+        // kept in the repository too, to be notified of their changes
+        optionsRepository.set(String.class, option.getKey(), option.getValue());
+        profileOptions.put(option.getKey(), option.getValue());
+      }
+    }
+    profiles = loadProfiles();
+  }
+
+  /**
+   * Reads the {@code tracing.profile.<name>.<option>} options, each profile requiring a
+   * {@code urlPrefix}.
+   */
+  private List<TracingProfile> loadProfiles() {
+    final Map<String, Map<String, String>> optionsByProfile = new TreeMap<>();
+    for (Map.Entry<String, String> option : profileOptions.entrySet()) {
+      final String key = option.getKey();
+      final int nameEnd = key.indexOf('.', PROFILE_PREFIX.length());
+      if (nameEnd < 0) {
+        continue;
+      }
+      final String name = key.substring(PROFILE_PREFIX.length(), nameEnd);
+      Map<String, String> profileOptions = optionsByProfile.get(name);
+      if (profileOptions == null) {
+        profileOptions = new TreeMap<>();
+        optionsByProfile.put(name, profileOptions);
+      }
+      profileOptions.put(key.substring(nameEnd + 1), option.getValue().trim());
+    }
+
+    final List<TracingProfile> profiles = new ArrayList<>(optionsByProfile.size());
+    for (Map.Entry<String, Map<String, String>> profile : optionsByProfile.entrySet()) {
+      final Map<String, String> profileOptions = profile.getValue();
+      final String urlPrefix = profileOptions.remove(PROFILE_URL_PREFIX);
+      if (urlPrefix == null || urlPrefix.isEmpty()) {
+        if(log.isLoggable(Level.WARNING)) {
+          log.warning("Ignoring the tracing profile " + profile.getKey() + " which has no " + PROFILE_URL_PREFIX + ".");
+        }
+        continue;
+      }
+      final StringBuilder rendered = new StringBuilder();
+      for (Map.Entry<String, String> option : profileOptions.entrySet()) {
+        if (rendered.length() > 0) {
+          rendered.append(';');
+        }
+        rendered.append(option.getKey()).append('=').append(option.getValue());
+      }
+      profiles.add(new TracingProfile(profile.getKey(), urlPrefix, rendered.toString()));
+    }
+    return profiles;
+  }
+
+  /**
+   * Returns whether the option is one of the tracing options.
+   */
+  static boolean isTracingOption(String key) {
+    return key != null
+        && (key.equals(PEER_SERVICE) || key.startsWith("trace") || key.startsWith(PROFILE_PREFIX));
   }
 
   String tracingPeerService() {
@@ -50,4 +174,144 @@ class TracingP6SpyOptions extends P6SpyOptions {
     final Boolean traceWithActiveSpanOnly = optionsRepository.get(Boolean.class, TRACE_WITH_STATEMENT_VALUES);
     return traceWithActiveSpanOnly != null && traceWithActiveSpanOnly;
   }
+
+  double traceSampleRate() {
+    return traceSampleRate;
+  }
+
+  long traceMaxSpansPerSecond() {
+    final Long traceMaxSpansPerSecond = optionsRepository.get(Long.class, TRACE_MAX_SPANS_PER_SECOND);
+    return traceMaxSpansPerSecond != null ? traceMaxSpansPerSecond : 0;
+  }
+
+  long traceSlowerThanMillis() {
+    final Long traceSlowerThanMillis = optionsRepository.get(Long.class, TRACE_SLOWER_THAN_MILLIS);
+    return traceSlowerThanMillis != null ? traceSlowerThanMillis : 0;
+  }
+
+  boolean traceStatementFingerprint() {
+    final Boolean traceStatementFingerprint = optionsRepository.get(Boolean.class, TRACE_STATEMENT_FINGERPRINT);
+    return traceStatementFingerprint != null && traceStatementFingerprint;
+  }
+
+  int traceMaxStatementLength() {
+    final Integer traceMaxStatementLength = optionsRepository.get(Integer.class, TRACE_MAX_STATEMENT_LENGTH);
+    return traceMaxStatementLength != null ? traceMaxStatementLength : 0;
+  }
+
+  int traceMaxBatchValues() {
+    final Integer traceMaxBatchValues = optionsRepository.get(Integer.class, TRACE_MAX_BATCH_VALUES);
+    return traceMaxBatchValues != null ? traceMaxBatchValues : 0;
+  }
+
+  boolean traceResultSetFetch() {
+    final Boolean traceResultSetFetch = optionsRepository.get(Boolean.class, TRACE_RESULT_SET_FETCH);
+    return traceResultSetFetch != null && traceResultSetFetch;
+  }
+
+  boolean traceTransactions() {
+    final Boolean traceTransactions = optionsRepository.get(Boolean.class, TRACE_TRANSACTIONS);
+    return traceTransactions != null && traceTransactions;
+  }
+
+  int traceAsyncQueueSize() {
+    final Integer traceAsyncQueueSize = optionsRepository.get(Integer.class, TRACE_ASYNC_QUEUE_SIZE);
+    return traceAsyncQueueSize != null ? traceAsyncQueueSize : 0;
+  }
+
+  AsyncSpanReporter.OverflowPolicy traceAsyncOverflowPolicy() {
+    return AsyncSpanReporter.OverflowPolicy.parse(
+        optionsRepository.get(String.class, TRACE_ASYNC_OVERFLOW_POLICY),
+        AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+  }
+
+  boolean traceLatencyHistograms() {
+    final Boolean traceLatencyHistograms = optionsRepository.get(Boolean.class, TRACE_LATENCY_HISTOGRAMS);
+    return traceLatencyHistograms != null && traceLatencyHistograms;
+  }
+
+  boolean traceMonitoring() {
+    final Boolean traceMonitoring = optionsRepository.get(Boolean.class, TRACE_MONITORING);
+    return traceMonitoring != null && traceMonitoring;
+  }
+
+  int traceOverheadBudgetPercent() {
+    final Integer traceOverheadBudgetPercent = optionsRepository.get(Integer.class, TRACE_OVERHEAD_BUDGET_PERCENT);
+    return traceOverheadBudgetPercent != null ? traceOverheadBudgetPercent : 0;
+  }
+
+  int traceNPlusOneThreshold() {
+    final Integer traceNPlusOneThreshold = optionsRepository.get(Integer.class, TRACE_N_PLUS_ONE_THRESHOLD);
+    return traceNPlusOneThreshold != null ? traceNPlusOneThreshold : 0;
+  }
+
+  boolean traceCompressStatements() {
+    final Boolean traceCompressStatements = optionsRepository.get(Boolean.class, TRACE_COMPRESS_STATEMENTS);
+    return traceCompressStatements != null && traceCompressStatements;
+  }
+
+  long traceExplainSlowerThanMillis() {
+    final Long traceExplainSlowerThanMillis = optionsRepository.get(Long.class, TRACE_EXPLAIN_SLOWER_THAN_MILLIS);
+    return traceExplainSlowerThanMillis != null ? traceExplainSlowerThanMillis : 0;
+  }
+
+  long traceExplainIntervalSeconds() {
+    final Long traceExplainIntervalSeconds = optionsRepository.get(Long.class, TRACE_EXPLAIN_INTERVAL_SECONDS);
+    return traceExplainIntervalSeconds != null ? traceExplainIntervalSeconds : DEFAULT_EXPLAIN_INTERVAL_SECONDS;
+  }
+
+  String traceExplainUser() {
+    return optionsRepository.get(String.class, TRACE_EXPLAIN_USER);
+  }
+
+  String traceExplainPassword() {
+    return optionsRepository.get(String.class, TRACE_EXPLAIN_PASSWORD);
+  }
+
+  /**
+   * Returns the masking of the statement values, {@code null} if no rule is set.
+   */
+  StatementRedactor redactor() {
+    try {
+      return StatementRedactor.of(optionsRepository.get(String.class, TRACE_REDACT_COLUMNS),
+          optionsRepository.get(String.class, TRACE_REDACT_TABLES),
+          optionsRepository.get(String.class, TRACE_REDACT_PARAMETERS),
+          optionsRepository.get(String.class, TRACE_REDACT_VALUE_PATTERN));
+    } catch (PatternSyntaxException e) {
+      if(log.isLoggable(Level.WARNING)) {
+        log.log(Level.WARNING, "Invalid " + TRACE_REDACT_VALUE_PATTERN + ", masking all the statement values.", e);
+      }
+      return StatementRedactor.MASK_ALL;
+    }
+  }
+
+  /**
+   * Returns the tracing profiles of {@code spy.properties}.
+   */
+  List<TracingProfile> profiles() {
+    return profiles;
+  }
+
+  /**
+   * Returns the tracing options of {@code spy.properties}, which apply unless overridden by a
+   * profile or in the jdbc url.
+   */
+  ResolvedTracingOptions defaults() {
+    return ResolvedTracingOptions.builder()
+        .peerService(tracingPeerService())
+        .traceWithActiveSpanOnly(traceWithActiveSpanOnly())
+        .traceWithStatementValues(traceWithStatementValues())
+        .traceSampleRate(traceSampleRate())
+        .traceMaxSpansPerSecond(traceMaxSpansPerSecond())
+        .traceSlowerThanMillis(traceSlowerThanMillis())
+        .traceStatementFingerprint(traceStatementFingerprint())
+        .traceMaxStatementLength(traceMaxStatementLength())
+        .traceMaxBatchValues(traceMaxBatchValues())
+        .traceResultSetFetch(traceResultSetFetch())
+        .traceTransactions(traceTransactions())
+        .traceNPlusOneThreshold(traceNPlusOneThreshold())
+        .traceCompressStatements(traceCompressStatements())
+        .redactor(redactor())
+        .build();
+  }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+/**
+ * Named set of tracing options, {@code tracing.profile.<name>.<option>} in {@code spy.properties},
+ * applying to the connections whose url starts with its {@code urlPrefix}.
+ */
+final class TracingProfile {
+  final String name;
+  final String urlPrefix;
+  /** Options of the profile, rendered like jdbc url options: {@code name=value;name=value}. */
+  final String options;
+
+  TracingProfile(String name, String urlPrefix, String options) {
+    this.name = name;
+    this.urlPrefix = urlPrefix;
+    this.options = options;
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import io.opentracing.Span;
+
+/**
+ * A transaction of a connection that is not in auto-commit mode, traced from its first statement
+ * to its commit or rollback.
+ */
+final class TransactionSpan {
+  /** Marks a transaction left out by sampling, so that it is not sampled again at each statement. */
+  static final TransactionSpan UNSAMPLED = new TransactionSpan(null);
+
+  final Span span;
+  int statements;
+  long dbNanos;
+
+  TransactionSpan(Span span) {
+    this.span = span;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values keyed by url prefix, looked up by the longest prefix of a url in time proportional to
+ * the length of the prefix. Not thread-safe while being built, immutable once published.
+ */
+final class UrlPrefixTrie<V> {
+  private final Node<V> root = new Node<>();
+  private boolean empty = true;
+
+  void put(String prefix, V value) {
+    Node<V> node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      final char c = prefix.charAt(i);
+      Node<V> child = node.children.get(c);
+      if (child == null) {
+        child = new Node<>();
+        node.children.put(c, child);
+      }
+      node = child;
+    }
+    node.value = value;
+    empty = false;
+  }
+
+  /**
+   * Returns the value of the longest prefix of the url, {@code null} if none matches.
+   */
+  V longestPrefixOf(String url) {
+    if (empty || url == null) {
+      return null;
+    }
+    Node<V> node = root;
+    V value = root.value;
+    for (int i = 0; i < url.length(); i++) {
+      node = node.children.get(url.charAt(i));
+      if (node == null) {
+        break;
+      }
+      if (node.value != null) {
+        value = node.value;
+      }
+    }
+    return value;
+  }
+
+  private static final class Node<V> {
+    final Map<Character, Node<V>> children = new HashMap<>(4);
+    V value;
+  }
+}
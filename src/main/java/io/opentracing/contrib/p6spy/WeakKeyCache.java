@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A size-bounded cache whose keys are weakly referenced, so that entries belonging to connections
+ * or statements that were never properly closed do not leak. Entries are spread over a fixed set of
+ * independently locked stripes to keep contention low when many threads hit the cache.
+ *
+ * <p>Keys are compared by identity, whatever their {@code equals} says: the cache tracks
+ * p6spy's {@code ConnectionInformation} and {@code StatementInformation} objects, not values. A
+ * full stripe evicts its oldest entry to make room for a new one, and hands the evicted value back
+ * to the caller. An unbounded cache never evicts, its entries only going away with their keys.
+ */
+final class WeakKeyCache<K, V> {
+  private static final int STRIPES = 16;
+
+  private final Stripe<K, V>[] stripes;
+
+  /**
+   * @param maxSize the number of entries from which the oldest ones are evicted, 0 for no limit
+   */
+  @SuppressWarnings("unchecked")
+  WeakKeyCache(int maxSize) {
+    final int maxSizePerStripe = maxSize > 0 ? Math.max(1, maxSize / STRIPES) : 0;
+    this.stripes = (Stripe<K, V>[]) new Stripe<?, ?>[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe<>(maxSizePerStripe);
+    }
+  }
+
+  V get(K key) {
+    final int hash = System.identityHashCode(key);
+    final Stripe<K, V> stripe = stripes[stripeFor(hash)];
+    synchronized (stripe) {
+      return stripe.get(key, hash);
+    }
+  }
+
+  /**
+   * Stores the value, evicting the oldest entry of the stripe when it is full.
+   *
+   * @return the value evicted to make room, {@code null} if none
+   */
+  V put(K key, V value) {
+    final int hash = System.identityHashCode(key);
+    final Stripe<K, V> stripe = stripes[stripeFor(hash)];
+    synchronized (stripe) {
+      return stripe.put(key, hash, value);
+    }
+  }
+
+  V remove(K key) {
+    final int hash = System.identityHashCode(key);
+    final Stripe<K, V> stripe = stripes[stripeFor(hash)];
+    synchronized (stripe) {
+      return stripe.remove(key, hash, null);
+    }
+  }
+
+  /**
+   * Removes the entry only if it still has the given value.
+   *
+   * @return whether the entry was removed
+   */
+  boolean remove(K key, V value) {
+    final int hash = System.identityHashCode(key);
+    final Stripe<K, V> stripe = stripes[stripeFor(hash)];
+    synchronized (stripe) {
+      return stripe.remove(key, hash, value) != null;
+    }
+  }
+
+  /**
+   * Returns the number of entries whose keys are still reachable.
+   */
+  int size() {
+    int size = 0;
+    for (Stripe<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  private static int stripeFor(int hash) {
+    return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+  }
+
+  /**
+   * A chained hash table of weakly referenced keys, also linked from oldest to newest entry.
+   * Callers hold the lock of the stripe.
+   */
+  private static final class Stripe<K, V> {
+    private final ReferenceQueue<K> collected = new ReferenceQueue<>();
+    private Entry<K, V>[] table;
+    /** The number of entries from which the oldest ones are evicted, 0 for no limit. */
+    private final int maxSize;
+    private int size;
+    private Entry<K, V> oldest;
+    private Entry<K, V> newest;
+
+    @SuppressWarnings("unchecked")
+    Stripe(int maxSize) {
+      int capacity = 4;
+      while (capacity < maxSize + maxSize / 2) {
+        capacity <<= 1;
+      }
+      this.table = (Entry<K, V>[]) new Entry<?, ?>[capacity];
+      this.maxSize = maxSize;
+    }
+
+    V get(K key, int hash) {
+      for (Entry<K, V> e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == key) {
+          return e.value;
+        }
+      }
+      return null;
+    }
+
+    V put(K key, int hash, V value) {
+      expungeCollected();
+      final int index = hash & (table.length - 1);
+      for (Entry<K, V> e = table[index]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == key) {
+          e.value = value;
+          return null;
+        }
+      }
+      V evicted = null;
+      if (maxSize > 0 && size >= maxSize) {
+        final Entry<K, V> eldest = oldest;
+        evicted = eldest.value;
+        unlink(eldest);
+      }
+      final Entry<K, V> entry = new Entry<>(key, hash, value, collected);
+      entry.next = table[index];
+      table[index] = entry;
+      entry.older = newest;
+      if (newest == null) {
+        oldest = entry;
+      } else {
+        newest.newer = entry;
+      }
+      newest = entry;
+      size++;
+      if (size > table.length - table.length / 4) {
+        // only unbounded stripes outgrow their table
+        resize();
+      }
+      return evicted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+      final Entry<K, V>[] oldTable = table;
+      table = (Entry<K, V>[]) new Entry<?, ?>[oldTable.length * 2];
+      for (Entry<K, V> e : oldTable) {
+        while (e != null) {
+          final Entry<K, V> next = e.next;
+          final int index = e.hash & (table.length - 1);
+          e.next = table[index];
+          table[index] = e;
+          e = next;
+        }
+      }
+    }
+
+    /**
+     * @param expected the value the entry must have to be removed, {@code null} for any
+     */
+    V remove(K key, int hash, V expected) {
+      expungeCollected();
+      for (Entry<K, V> e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == key) {
+          if (expected != null && e.value != expected) {
+            return null;
+          }
+          unlink(e);
+          return e.value;
+        }
+      }
+      return null;
+    }
+
+    int size() {
+      expungeCollected();
+      return size;
+    }
+
+    private void expungeCollected() {
+      for (Reference<? extends K> ref; (ref = collected.poll()) != null; ) {
+        @SuppressWarnings("unchecked")
+        final Entry<K, V> entry = (Entry<K, V>) ref;
+        if (!entry.removed) {
+          unlink(entry);
+          entry.value = null;
+        }
+      }
+    }
+
+    private void unlink(Entry<K, V> entry) {
+      final int index = entry.hash & (table.length - 1);
+      if (table[index] == entry) {
+        table[index] = entry.next;
+      } else {
+        Entry<K, V> previous = table[index];
+        while (previous.next != entry) {
+          previous = previous.next;
+        }
+        previous.next = entry.next;
+      }
+      if (entry.older == null) {
+        oldest = entry.newer;
+      } else {
+        entry.older.newer = entry.newer;
+      }
+      if (entry.newer == null) {
+        newest = entry.older;
+      } else {
+        entry.newer.older = entry.older;
+      }
+      entry.next = entry.older = entry.newer = null;
+      entry.removed = true;
+      entry.clear();
+      size--;
+    }
+  }
+
+  private static final class Entry<K, V> extends WeakReference<K> {
+    final int hash;
+    V value;
+    Entry<K, V> next;
+    Entry<K, V> older;
+    Entry<K, V> newer;
+    boolean removed;
+
+    Entry(K key, int hash, V value, ReferenceQueue<K> queue) {
+      super(key, queue);
+      this.hash = hash;
+      this.value = value;
+    }
+  }
+}
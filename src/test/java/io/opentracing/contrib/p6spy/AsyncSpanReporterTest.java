@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AsyncSpanReporterTest {
+
+  private final List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+  private final CountDownLatch blocking = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Test
+  public void should_drop_newest_span_on_overflow() throws InterruptedException {
+    final AsyncSpanReporter reporter = fillQueue(AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+
+    reporter.submit(span("c"));
+    release.countDown();
+
+    reporter.close();
+    assertEquals(Arrays.asList("a", "b"), reported);
+    assertEquals(1, reporter.droppedSpans());
+  }
+
+  @Test
+  public void should_drop_oldest_span_on_overflow() throws InterruptedException {
+    final AsyncSpanReporter reporter = fillQueue(AsyncSpanReporter.OverflowPolicy.DROP_OLDEST);
+
+    reporter.submit(span("c"));
+    release.countDown();
+
+    reporter.close();
+    assertEquals(Arrays.asList("b", "c"), reported);
+    assertEquals(1, reporter.droppedSpans());
+  }
+
+  @Test
+  public void should_report_on_calling_thread_on_overflow() throws InterruptedException {
+    final AsyncSpanReporter reporter = fillQueue(AsyncSpanReporter.OverflowPolicy.CALLER_RUNS);
+
+    reporter.submit(span("c"));
+    assertEquals(Collections.singletonList("c"), reported);
+    release.countDown();
+
+    reporter.close();
+    assertEquals(Arrays.asList("c", "a", "b"), reported);
+    assertEquals(0, reporter.droppedSpans());
+  }
+
+  @Test
+  public void should_report_queued_spans_and_then_on_calling_thread_once_closed() throws InterruptedException {
+    final AsyncSpanReporter reporter = fillQueue(AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+    release.countDown();
+    reporter.close();
+    assertEquals(Arrays.asList("a", "b"), reported);
+
+    reporter.submit(span("c"));
+    assertEquals(Arrays.asList("a", "b", "c"), reported);
+  }
+
+  @Test
+  public void should_report_every_span_submitted_while_closing() throws InterruptedException {
+    final int threads = 4;
+    final int spansPerThread = 200;
+    for (int attempt = 0; attempt < 500; attempt++) {
+      final AsyncSpanReporter reporter =
+          new AsyncSpanReporter(1024, AsyncSpanReporter.OverflowPolicy.CALLER_RUNS);
+      final AtomicInteger reportedSpans = new AtomicInteger();
+      final Runnable span = new Runnable() {
+        @Override public void run() {
+          reportedSpans.incrementAndGet();
+        }
+      };
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Thread> submitters = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final Thread submitter = new Thread(new Runnable() {
+          @Override public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            for (int j = 0; j < spansPerThread; j++) {
+              reporter.submit(span);
+            }
+          }
+        });
+        submitter.start();
+        submitters.add(submitter);
+      }
+      start.countDown();
+      reporter.close();
+      for (Thread submitter : submitters) {
+        submitter.join();
+      }
+
+      assertEquals(threads * spansPerThread, reportedSpans.get());
+      assertEquals(0, reporter.droppedSpans());
+    }
+  }
+
+  @Test
+  public void should_share_reporters_across_reloads() {
+    final AsyncSpanReporter reporter =
+        AsyncSpanReporter.publish("reporter_test", 2, AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+
+    assertSame(reporter,
+        AsyncSpanReporter.publish("reporter_test", 2, AsyncSpanReporter.OverflowPolicy.DROP_NEWEST));
+    final AsyncSpanReporter replaced =
+        AsyncSpanReporter.publish("reporter_test", 4, AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+    assertNotSame(reporter, replaced);
+    // the closed reporter still reports, on the calling thread
+    reporter.submit(span("a"));
+    assertEquals(Collections.singletonList("a"), reported);
+    assertNull(AsyncSpanReporter.publish("reporter_test", 0, AsyncSpanReporter.OverflowPolicy.DROP_NEWEST));
+  }
+
+  @Test
+  public void should_parse_overflow_policy() {
+    assertEquals(AsyncSpanReporter.OverflowPolicy.DROP_OLDEST,
+        AsyncSpanReporter.OverflowPolicy.parse("drop_oldest", AsyncSpanReporter.OverflowPolicy.DROP_NEWEST));
+    assertEquals(AsyncSpanReporter.OverflowPolicy.DROP_NEWEST,
+        AsyncSpanReporter.OverflowPolicy.parse("unknown", AsyncSpanReporter.OverflowPolicy.DROP_NEWEST));
+  }
+
+  /**
+   * Returns a reporter with a queue of two spans, full, its thread being blocked until released.
+   */
+  private AsyncSpanReporter fillQueue(AsyncSpanReporter.OverflowPolicy overflowPolicy)
+      throws InterruptedException {
+    final AsyncSpanReporter reporter = new AsyncSpanReporter(2, overflowPolicy);
+    reporter.submit(new Runnable() {
+      @Override public void run() {
+        blocking.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    blocking.await();
+    reporter.submit(span("a"));
+    reporter.submit(span("b"));
+    return reporter;
+  }
+
+  private Runnable span(final String name) {
+    return new Runnable() {
+      @Override public void run() {
+        reported.add(name);
+      }
+    };
+  }
+}
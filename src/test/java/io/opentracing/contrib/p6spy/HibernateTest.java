@@ -75,7 +75,7 @@ public class HibernateTest {
     assertNotNull(employee.id);
 
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
-    assertEquals(8, finishedSpans.size());
+    assertEquals(12, finishedSpans.size());
     checkTags(finishedSpans, "myservice", "jdbc:hsqldb:mem:jpa");
     assertNull(mockTracer.scopeManager().activeSpan());
   }
@@ -120,7 +120,7 @@ public class HibernateTest {
     }
 
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
-    assertEquals(9, finishedSpans.size());
+    assertEquals(13, finishedSpans.size());
     checkSameTrace(finishedSpans);
     assertNull(mockTracer.activeSpan());
   }
@@ -161,7 +161,7 @@ public class HibernateTest {
     assertNotNull(employee.id);
 
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
-    assertEquals(8, finishedSpans.size());
+    assertEquals(12, finishedSpans.size());
     checkTags(finishedSpans, "myservice", "jdbc:hsqldb:mem:hibernate");
     assertNull(mockTracer.activeSpan());
   }
@@ -179,7 +179,7 @@ public class HibernateTest {
     sessionFactory.close();
 
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
-    assertEquals(8, finishedSpans.size());
+    assertEquals(12, finishedSpans.size());
 
     checkTags(finishedSpans, "inurl", "jdbc:hsqldb:mem:hibernate;tracingPeerService=inurl");
 
@@ -222,7 +222,7 @@ public class HibernateTest {
     }
 
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
-    assertEquals(9, finishedSpans.size());
+    assertEquals(13, finishedSpans.size());
     checkSameTrace(finishedSpans);
 
     assertNull(mockTracer.activeSpan());
@@ -244,7 +244,7 @@ public class HibernateTest {
     }
 
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
-    assertEquals(8, finishedSpans.size());
+    assertEquals(12, finishedSpans.size());
 
     assertNull(mockTracer.activeSpan());
   }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the classes of the {@code META-INF/versions/21} layer are the ones loaded on Java 21,
+ * when the tests run against the multi-release jar built by the {@code java21} profile.
+ */
+public class Java21LayerTest {
+
+  @Test
+  public void should_load_the_java21_layer_from_the_jar() throws Exception {
+    Assume.assumeTrue("jar".equals(StripedCounter.class.getResource("StripedCounter.class").getProtocol()));
+    final String version = System.getProperty("java.specification.version");
+    Assume.assumeTrue(!version.startsWith("1.") && Integer.parseInt(version) >= 21);
+
+    assertEquals(LongAdder.class, field(StripedCounter.class, "adder").getType());
+    assertEquals(LongAdder[].class, field(LatencyHistogram.class, "buckets").getType());
+  }
+
+  private static Field field(Class<?> type, String name) throws NoSuchFieldException {
+    return type.getDeclaredField(name);
+  }
+}
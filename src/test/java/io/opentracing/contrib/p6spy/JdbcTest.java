@@ -14,18 +14,35 @@
 package io.opentracing.contrib.p6spy;
 
 import com.p6spy.engine.common.ConnectionInformation;
+import com.p6spy.engine.common.PreparedStatementInformation;
+import com.p6spy.engine.common.ResultSetInformation;
 import com.p6spy.engine.common.StatementInformation;
+import io.opentracing.References;
+import io.opentracing.Scope;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
 import io.opentracing.tag.Tags;
 import io.opentracing.util.GlobalTracerTestUtil;
+import java.lang.management.ManagementFactory;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -34,7 +51,12 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class JdbcTest {
 
@@ -117,6 +139,652 @@ public class JdbcTest {
     assertEquals(0, spans.size());
   }
 
+  @Test
+  public void should_read_connection_meta_data_once_per_connection() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener("", false, false);
+    for (int i = 0; i < 3; i++) {
+      p6SpyListener.onBeforeAnyExecute(statementInformation);
+      p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+    }
+
+    assertEquals(3, mockTracer.finishedSpans().size());
+    final DatabaseMetaData metaData = connection.getMetaData();
+    Mockito.verify(metaData, Mockito.times(1)).getURL();
+    Mockito.verify(metaData, Mockito.times(1)).getUserName();
+    Mockito.verify(connection, Mockito.times(1)).getCatalog();
+  }
+
+  @Test
+  public void should_not_allocate_for_statements_without_active_span() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemoryEnabled());
+    final Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:jdbc");
+    // statements of a transaction, which is remembered as not traced
+    connection.setAutoCommit(false);
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    statementInformation.setStatementQuery("SELECT * FROM employer WHERE id = ?");
+    final StatementLatencies latencies = new StatementLatencies("allocation_test");
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().traceWithActiveSpanOnly(true).traceWithStatementValues(true)
+            .traceCompressStatements(true).traceStatementFingerprint(true).traceTransactions(true)
+            .build()), null, latencies);
+    // describes the connection, and lets the listener be compiled
+    simulateExecutions(p6SpyListener, statementInformation, 10000);
+
+    final long threadId = Thread.currentThread().getId();
+    final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+    simulateExecutions(p6SpyListener, statementInformation, 10000);
+    final long statementsAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+    connection.close();
+    latencies.close();
+
+    // the measure itself allocates a few bytes, far less than a byte per statement
+    assertTrue(statementsAllocatedBytes + " bytes allocated", statementsAllocatedBytes < 1024);
+    assertEquals(0, mockTracer.finishedSpans().size());
+    assertEquals(1, latencies.getHistograms());
+  }
+
+  @Test
+  public void should_read_connection_meta_data_again_after_close() throws Exception {
+    final Connection connection = createConnection();
+    final ConnectionInformation connectionInformation = ConnectionInformation.fromTestConnection(connection);
+    final StatementInformation statementInformation = new StatementInformation(connectionInformation);
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener("", false, false);
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+    p6SpyListener.onAfterConnectionClose(connectionInformation, null);
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+
+    Mockito.verify(connection, Mockito.times(2)).getCatalog();
+  }
+
+  @Test
+  public void should_not_report_sampled_out_span() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:jdbc;traceSampleRate=0");
+    Statement statement = connection.createStatement();
+    statement.executeQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+    connection.close();
+    assertEquals(0, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void should_only_report_slow_statements() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().traceSlowerThanMillis(10).build()));
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(1), null);
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(50), null);
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(1, spans.size());
+    final MockSpan span = spans.get(0);
+    assertEquals(TimeUnit.MILLISECONDS.toMicros(50), span.finishMicros() - span.startMicros());
+    assertEquals(false, span.tags().get(Tags.ERROR.getKey()));
+    assertEquals("hsqldb", span.tags().get(Tags.DB_TYPE.getKey()));
+  }
+
+  @Test
+  public void should_report_normalized_statement_with_fingerprint() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:jdbc;traceStatementFingerprint=true");
+    Statement statement = connection.createStatement();
+    statement.executeQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS WHERE USER_NAME = 'SA'");
+    statement.executeQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS WHERE USER_NAME = 'NOBODY'");
+    connection.close();
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.size());
+    assertEquals("SELECT ? FROM INFORMATION_SCHEMA.SYSTEM_USERS WHERE USER_NAME = ?",
+        spans.get(0).tags().get(Tags.DB_STATEMENT.getKey()));
+    assertNotNull(spans.get(0).tags().get("db.statement.fingerprint"));
+    assertEquals(spans.get(0).tags().get("db.statement.fingerprint"),
+        spans.get(1).tags().get("db.statement.fingerprint"));
+  }
+
+  @Test
+  public void should_report_one_span_per_batch() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:batch");
+    connection.createStatement().executeUpdate("CREATE TABLE batched (id INTEGER PRIMARY KEY)");
+    mockTracer.reset();
+
+    PreparedStatement statement = connection.prepareStatement("INSERT INTO batched VALUES (?)");
+    for (int id : new int[] {1, 2, 3}) {
+      statement.setInt(1, id);
+      statement.addBatch();
+    }
+    statement.executeBatch();
+    assertEquals(1, mockTracer.finishedSpans().size());
+    final MockSpan span = mockTracer.finishedSpans().get(0);
+    assertEquals("Batch", span.operationName());
+    assertEquals(3, span.tags().get("db.batch.size"));
+    assertEquals("1,1,1", span.tags().get("db.batch.update_counts"));
+    assertEquals(0, span.tags().get("db.batch.failures"));
+    assertEquals(false, span.tags().get(Tags.ERROR.getKey()));
+
+    mockTracer.reset();
+    statement.setInt(1, 4);
+    statement.addBatch();
+    statement.setInt(1, 1);
+    statement.addBatch();
+    try {
+      statement.executeBatch();
+    } catch (BatchUpdateException expected) {
+    }
+    connection.close();
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+    final MockSpan failed = mockTracer.finishedSpans().get(0);
+    assertEquals(2, failed.tags().get("db.batch.size"));
+    assertEquals(true, failed.tags().get(Tags.ERROR.getKey()));
+  }
+
+  @Test
+  public void should_report_result_set_fetch() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:jdbc;traceResultSetFetch=true");
+    ResultSet resultSet = connection.createStatement()
+        .executeQuery("SELECT * FROM (VALUES (1), (2), (3)) AS t(id)");
+    while (resultSet.next()) {
+    }
+    resultSet.close();
+    connection.close();
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.size());
+    assertEquals("Execute", spans.get(0).operationName());
+    final MockSpan fetch = spans.get(1);
+    assertEquals("Fetch", fetch.operationName());
+    assertEquals(3, fetch.tags().get("db.fetch.rows"));
+    assertNotNull(fetch.tags().get("db.fetch.nanos"));
+    assertNotNull(fetch.tags().get("db.fetch.first_row_nanos"));
+    assertEquals(false, fetch.tags().get(Tags.ERROR.getKey()));
+  }
+
+  @Test
+  public void should_skip_result_sets_without_looking_connections_up() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    statementInformation.setStatementQuery("SELECT 1");
+    final TracingListenerMonitor monitor = new TracingListenerMonitor();
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().build()), null, null, monitor);
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+    final long lookups = monitor.getMetadataCacheHits() + monitor.getMetadataCacheMisses();
+
+    final ResultSetInformation resultSetInformation = new ResultSetInformation(statementInformation);
+    for (int i = 0; i < 3; i++) {
+      p6SpyListener.onAfterResultSetNext(resultSetInformation, 1, true, null);
+    }
+    p6SpyListener.onAfterResultSetClose(resultSetInformation, null);
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+    assertEquals(lookups, monitor.getMetadataCacheHits() + monitor.getMetadataCacheMisses());
+  }
+
+  @Test
+  public void should_report_transaction_with_commit() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:transaction;traceTransactions=true");
+    connection.createStatement().executeUpdate("CREATE TABLE transacted (id INTEGER)");
+    mockTracer.reset();
+
+    connection.setAutoCommit(false);
+    Statement statement = connection.createStatement();
+    statement.executeUpdate("INSERT INTO transacted VALUES (1)");
+    statement.executeUpdate("INSERT INTO transacted VALUES (2)");
+    connection.commit();
+    connection.rollback();
+    connection.close();
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(5, spans.size());
+    final MockSpan transaction = spans.get(3);
+    assertEquals("Transaction", transaction.operationName());
+    assertEquals(2, transaction.tags().get("db.transaction.statements"));
+    assertNotNull(transaction.tags().get("db.transaction.nanos"));
+    assertEquals(false, transaction.tags().get(Tags.ERROR.getKey()));
+    for (MockSpan span : spans.subList(0, 3)) {
+      assertEquals(transaction.context().spanId(), span.parentId());
+    }
+    assertEquals("Commit", spans.get(2).operationName());
+    assertEquals("COMMIT", spans.get(2).tags().get(Tags.DB_STATEMENT.getKey()));
+    // nothing was executed since the commit, so the rollback is not part of a transaction
+    assertEquals("Rollback", spans.get(4).operationName());
+    assertEquals(0, spans.get(4).parentId());
+  }
+
+  @Test
+  public void should_finish_transaction_when_auto_commit_is_set_back() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:autocommit;traceTransactions=true");
+    connection.createStatement().executeUpdate("CREATE TABLE transacted (id INTEGER)");
+    mockTracer.reset();
+
+    connection.setAutoCommit(false);
+    connection.createStatement().executeUpdate("INSERT INTO transacted VALUES (3)");
+    connection.setAutoCommit(true);
+    connection.createStatement().executeUpdate("INSERT INTO transacted VALUES (4)");
+    connection.close();
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(3, spans.size());
+    final MockSpan transaction = spans.get(1);
+    assertEquals("Transaction", transaction.operationName());
+    assertEquals(1, transaction.tags().get("db.transaction.statements"));
+    assertEquals(transaction.context().spanId(), spans.get(0).parentId());
+    assertEquals(0, spans.get(2).parentId());
+  }
+
+  @Test
+  public void should_read_auto_commit_once_per_connection() throws Exception {
+    final Connection connection = Mockito.spy(createConnection());
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    statementInformation.setStatementQuery("SELECT 1");
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().traceTransactions(true).build()));
+
+    simulateExecutions(p6SpyListener, statementInformation, 3);
+
+    Mockito.verify(connection, Mockito.times(1)).getAutoCommit();
+    assertEquals(3, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void should_forget_statements_whose_execution_never_completes() throws Exception {
+    final Connection connection = createConnection();
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener("", false, false);
+    for (int i = 0; i < 10; i++) {
+      final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+      statementInformation.setStatementQuery("SELECT " + i);
+      p6SpyListener.onBeforeAnyExecute(statementInformation);
+    }
+    assertEquals(10, p6SpyListener.executingSpans.size());
+
+    for (int i = 0; i < 100 && p6SpyListener.executingSpans.size() > 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(0, p6SpyListener.executingSpans.size());
+  }
+
+  @Test
+  public void should_finish_statements_only_once_completed_however_many_are_executing() throws Exception {
+    final Connection connection = createConnection();
+    final ConnectionInformation connectionInformation = ConnectionInformation.fromTestConnection(connection);
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener("", false, false);
+    final List<StatementInformation> statements = new ArrayList<>();
+    for (int i = 0; i < 4096; i++) {
+      final StatementInformation statementInformation = new StatementInformation(connectionInformation);
+      statementInformation.setStatementQuery("SELECT " + i);
+      statements.add(statementInformation);
+      p6SpyListener.onBeforeAnyExecute(statementInformation);
+    }
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    for (StatementInformation statementInformation : statements) {
+      p6SpyListener.onAfterAnyExecute(statementInformation, 1, new SQLException());
+    }
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(4096, spans.size());
+    for (MockSpan span : spans) {
+      assertEquals(true, span.tags().get(Tags.ERROR.getKey()));
+    }
+  }
+
+  @Test
+  public void should_finish_interleaved_statements_of_one_thread() throws Exception {
+    final Connection connection = createConnection();
+    final ConnectionInformation connectionInformation = ConnectionInformation.fromTestConnection(connection);
+    final StatementInformation outer = new StatementInformation(connectionInformation);
+    outer.setStatementQuery("SELECT 1");
+    final StatementInformation inner = new StatementInformation(connectionInformation);
+    inner.setStatementQuery("SELECT 2");
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener("", false, false);
+
+    p6SpyListener.onBeforeAnyExecute(outer);
+    p6SpyListener.onBeforeAnyExecute(inner);
+    p6SpyListener.onAfterAnyExecute(outer, 1, null);
+    p6SpyListener.onAfterAnyExecute(inner, 1, new SQLException());
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.size());
+    assertEquals("SELECT 1", spans.get(0).tags().get(Tags.DB_STATEMENT.getKey()));
+    assertEquals(false, spans.get(0).tags().get(Tags.ERROR.getKey()));
+    assertEquals("SELECT 2", spans.get(1).tags().get(Tags.DB_STATEMENT.getKey()));
+    assertEquals(true, spans.get(1).tags().get(Tags.ERROR.getKey()));
+    assertNull(mockTracer.activeSpan());
+  }
+
+  @Test
+  public void should_explain_slow_queries_once() throws Exception {
+    final Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:jdbc");
+    final StatementInformation statementInformation = new StatementInformation(
+        ConnectionInformation.fromDriver(DriverManager.getDriver("jdbc:hsqldb:mem:jdbc"), connection, 0));
+    statementInformation.setStatementQuery("SELECT * FROM INFORMATION_SCHEMA.SYSTEM_USERS WHERE USER_NAME = ?");
+    final StatementExplainer explainer =
+        new StatementExplainer(TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MINUTES.toNanos(1));
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(
+        new TracingOptionsResolver("", false, false), null, null, null, null, null, explainer);
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(1), null);
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(50), null);
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (mockTracer.finishedSpans().size() < 3 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(50), null);
+    Thread.sleep(100);
+    explainer.close();
+    connection.close();
+
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(4, spans.size());
+    final MockSpan explainSpan = spans.get(2);
+    assertEquals("Explain", explainSpan.operationName());
+    assertEquals(References.FOLLOWS_FROM, explainSpan.references().get(0).getReferenceType());
+    assertEquals(spans.get(1).context().spanId(), explainSpan.references().get(0).getContext().spanId());
+    assertEquals("hsqldb", explainSpan.tags().get(Tags.DB_TYPE.getKey()));
+    assertTrue(explainSpan.tags().get(StatementExplainer.DB_PLAN).toString().contains("SYSTEM_USERS"));
+    assertEquals("Execute", spans.get(3).operationName());
+  }
+
+  @Test
+  public void should_explain_prepared_queries_with_their_values() throws Exception {
+    final Driver driver = Mockito.mock(Driver.class);
+    final Connection explainConnection = Mockito.mock(Connection.class);
+    final PreparedStatement explainStatement = Mockito.mock(PreparedStatement.class);
+    final ResultSet plan = Mockito.mock(ResultSet.class, Mockito.RETURNS_DEEP_STUBS);
+    Mockito.when(driver.connect(Mockito.eq("jdbc:postgresql://localhost/jdbc"), Mockito.any(Properties.class)))
+        .thenReturn(explainConnection);
+    Mockito.when(explainConnection.prepareStatement("EXPLAIN SELECT * FROM employee WHERE name = ? AND hired < ?"))
+        .thenReturn(explainStatement);
+    Mockito.when(explainStatement.executeQuery()).thenReturn(plan);
+    Mockito.when(plan.getMetaData().getColumnCount()).thenReturn(1);
+    Mockito.when(plan.next()).thenReturn(true, false);
+    Mockito.when(plan.getString(1)).thenReturn("Seq Scan on employee");
+    final java.sql.Date hired = java.sql.Date.valueOf("2000-01-01");
+    final PreparedStatementInformation statementInformation = postgresqlStatement(driver, hired);
+    final StatementExplainer explainer =
+        new StatementExplainer(TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MINUTES.toNanos(1));
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(
+        new TracingOptionsResolver("", false, true), null, null, null, null, null, explainer);
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(50), null);
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (mockTracer.finishedSpans().size() < 2 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    explainer.close();
+
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.size());
+    assertEquals("Explain", spans.get(1).operationName());
+    assertEquals("Seq Scan on employee", spans.get(1).tags().get(StatementExplainer.DB_PLAN));
+    Mockito.verify(explainStatement).setObject(1, "O'Brien");
+    Mockito.verify(explainStatement).setObject(2, hired);
+    Mockito.verify(explainConnection).setReadOnly(true);
+    Mockito.verify(explainConnection).close();
+  }
+
+  @Test
+  public void should_not_explain_placeholders_without_their_values() throws Exception {
+    final Driver driver = Mockito.mock(Driver.class);
+    final PreparedStatementInformation statementInformation =
+        postgresqlStatement(driver, java.sql.Date.valueOf("2000-01-01"));
+    final StatementExplainer explainer =
+        new StatementExplainer(TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MINUTES.toNanos(1));
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(
+        new TracingOptionsResolver("", false, false), null, null, null, null, null, explainer);
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(50), null);
+    explainer.close();
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+    assertEquals(false, explainer.explainedRecently(
+        new SqlFingerprinter().fingerprint(statementInformation.getSql()).fingerprint));
+    Mockito.verifyZeroInteractions(driver);
+  }
+
+  @Test
+  public void should_report_spans_asynchronously() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    statementInformation.setStatementQuery("SELECT 1");
+    final AsyncSpanReporter reporter = new AsyncSpanReporter(16, AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().build()), reporter);
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, TimeUnit.MILLISECONDS.toNanos(5), null);
+    reporter.close();
+
+    List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(1, spans.size());
+    final MockSpan span = spans.get(0);
+    assertEquals("SELECT 1", span.tags().get(Tags.DB_STATEMENT.getKey()));
+    assertEquals(TimeUnit.MILLISECONDS.toMicros(5), span.finishMicros() - span.startMicros());
+    assertEquals(false, span.tags().get(Tags.ERROR.getKey()));
+  }
+
+  @Test
+  public void should_monitor_listener_work() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    final TracingListenerMonitor monitor = TracingListenerMonitor.publish("monitor_test", true);
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().traceWithActiveSpanOnly(true).build()), null, null, monitor);
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    final ObjectName name = TracingMBeans.objectName("monitor_test", TracingListenerMonitor.class);
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals(0L, server.getAttribute(name, "SpansStarted"));
+    assertEquals(2L, server.getAttribute(name, "SpansSkippedWithoutActiveSpan"));
+    assertEquals(1L, server.getAttribute(name, "MetadataCacheMisses"));
+    assertEquals(0.5, (Double) server.getAttribute(name, "MetadataCacheHitRatio"), 0);
+    assertTrue(monitor.getBeforeNanos() > 0);
+    assertTrue(monitor.getAfterNanos() > 0);
+  }
+
+  @Test
+  public void should_share_monitors_across_reloads() throws Exception {
+    final TracingListenerMonitor monitor = TracingListenerMonitor.publish("monitor_reload_test", true);
+    monitor.spansStarted.add(1);
+
+    assertSame(monitor, TracingListenerMonitor.publish("monitor_reload_test", true));
+    final ObjectName name = TracingMBeans.objectName("monitor_reload_test", TracingListenerMonitor.class);
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals(1L, server.getAttribute(name, "SpansStarted"));
+    assertNull(TracingListenerMonitor.publish("monitor_reload_test", false));
+    assertFalse(server.isRegistered(name));
+    assertNotSame(monitor, TracingListenerMonitor.publish("monitor_reload_test", true));
+    assertNull(TracingListenerMonitor.publish("monitor_reload_test", false));
+  }
+
+  @Test
+  public void should_monitor_batched_statements_and_background_reporting() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    statementInformation.setStatementQuery("INSERT INTO employee VALUES (1)");
+    final TracingListenerMonitor monitor = new TracingListenerMonitor();
+    final AsyncSpanReporter reporter = new AsyncSpanReporter(16, AsyncSpanReporter.OverflowPolicy.DROP_NEWEST);
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().build()), reporter, null, monitor);
+
+    p6SpyListener.onAfterAnyAddBatch(statementInformation, 1, null);
+    assertTrue(monitor.getAfterNanos() > 0);
+    assertEquals(0, monitor.getBackgroundNanos());
+
+    p6SpyListener.onBeforeExecuteBatch(statementInformation);
+    p6SpyListener.onAfterExecuteBatch(statementInformation, 1, new int[] {1}, null);
+    reporter.close();
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+    assertTrue(monitor.getBackgroundNanos() > 0);
+  }
+
+  @Test
+  public void should_report_spans_to_registered_tracer() throws Exception {
+    final MockTracer registeredTracer = new MockTracer();
+    TracerRegistry.registerForUrlPrefix("jdbc:hsqldb:mem:registered", registeredTracer);
+    try {
+      Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:registered");
+      connection.createStatement().executeUpdate("CREATE TABLE registered (id INTEGER)");
+      TracerRegistry.registerForUrlPrefix("jdbc:hsqldb:mem:registered", NoopTracerFactory.create());
+      connection.createStatement().executeUpdate("DROP TABLE registered");
+      connection.close();
+    } finally {
+      TracerRegistry.clear();
+    }
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    final List<MockSpan> spans = registeredTracer.finishedSpans();
+    assertEquals(1, spans.size());
+    assertEquals("CREATE TABLE registered (id INTEGER)", spans.get(0).tags().get(Tags.DB_STATEMENT.getKey()));
+  }
+
+  @Test
+  public void should_detect_n_plus_one_and_duplicate_statements() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:repeated;traceNPlusOneThreshold=3");
+    connection.createStatement().executeUpdate("CREATE TABLE repeated (id INTEGER)");
+    mockTracer.reset();
+
+    final MockSpan parent = mockTracer.buildSpan("parent").start();
+    try (Scope activeSpan = mockTracer.activateSpan(parent)) {
+      for (int id : new int[] {1, 2, 2, 3}) {
+        connection.createStatement().executeQuery("SELECT id FROM repeated WHERE id = " + id).close();
+      }
+    }
+    parent.finish();
+    connection.createStatement().executeQuery("SELECT id FROM repeated WHERE id = 3").close();
+    connection.close();
+
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(6, spans.size());
+    assertNull(spans.get(0).tags().get("db.n_plus_one"));
+    assertNull(spans.get(0).tags().get("db.duplicate"));
+    assertNull(spans.get(1).tags().get("db.n_plus_one"));
+    assertEquals(true, spans.get(2).tags().get("db.n_plus_one"));
+    assertEquals(3, spans.get(2).tags().get("db.n_plus_one.count"));
+    assertEquals(true, spans.get(2).tags().get("db.duplicate"));
+    assertEquals(2, spans.get(2).tags().get("db.duplicate.count"));
+    assertEquals(4, spans.get(3).tags().get("db.n_plus_one.count"));
+    assertNull(spans.get(3).tags().get("db.duplicate"));
+    // statements without parent span are not tracked
+    assertNull(spans.get(5).tags().get("db.n_plus_one"));
+  }
+
+  @Test
+  public void should_compress_consecutive_identical_statements() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:compressed;traceCompressStatements=true");
+    connection.createStatement().executeUpdate("CREATE TABLE compressed (id INTEGER)");
+    for (int id = 0; id < 5; id++) {
+      connection.createStatement().executeQuery("SELECT id FROM compressed WHERE id = " + id).close();
+    }
+    assertEquals(1, mockTracer.finishedSpans().size());
+    connection.createStatement().executeUpdate("DROP TABLE compressed");
+    assertEquals(2, mockTracer.finishedSpans().size());
+    connection.close();
+
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(3, spans.size());
+    assertNull(spans.get(0).tags().get("db.statement.count"));
+    final MockSpan compressed = spans.get(1);
+    assertEquals("SELECT id FROM compressed WHERE id = 0", compressed.tags().get(Tags.DB_STATEMENT.getKey()));
+    assertEquals(5, compressed.tags().get("db.statement.count"));
+    assertEquals(0, compressed.tags().get("db.statement.errors"));
+    final long total = (Long) compressed.tags().get("db.statement.total_nanos");
+    final long min = (Long) compressed.tags().get("db.statement.min_nanos");
+    final long max = (Long) compressed.tags().get("db.statement.max_nanos");
+    assertTrue(min <= max && max <= total && 5 * min <= total);
+    assertTrue(compressed.startMicros() <= compressed.finishMicros());
+    assertEquals("DROP TABLE compressed", spans.get(2).tags().get(Tags.DB_STATEMENT.getKey()));
+    assertNull(spans.get(2).tags().get("db.statement.count"));
+  }
+
+  @Test
+  public void should_report_pending_runs_without_waiting_for_the_next_statement() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:pending;traceCompressStatements=true");
+    for (int id = 0; id < 3; id++) {
+      connection.createStatement().executeQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS").close();
+    }
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    final long deadline = System.currentTimeMillis() + 10 * StatementRun.MAX_PENDING_MILLIS;
+    while (mockTracer.finishedSpans().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(1, spans.size());
+    assertEquals(3, spans.get(0).tags().get("db.statement.count"));
+    connection.close();
+    assertEquals(1, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void should_apply_updated_options_to_open_connections() throws Exception {
+    final Connection connection = createConnection();
+    final StatementInformation statementInformation = new StatementInformation(ConnectionInformation.fromTestConnection(connection));
+    statementInformation.setStatementQuery("SELECT 1");
+    final TracingOptionsResolver optionsResolver = new TracingOptionsResolver("before", false, false);
+    final TracingP6SpyListener p6SpyListener = new TracingP6SpyListener(optionsResolver);
+
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+    optionsResolver.update(ResolvedTracingOptions.builder().peerService("after").build());
+    p6SpyListener.onBeforeAnyExecute(statementInformation);
+    p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.size());
+    assertEquals("before", spans.get(0).tags().get(Tags.PEER_SERVICE.getKey()));
+    assertEquals("after", spans.get(1).tags().get(Tags.PEER_SERVICE.getKey()));
+  }
+
+  @Test
+  public void should_use_profile_matching_url() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:profiled");
+    connection.createStatement().executeUpdate("CREATE TABLE profiled (id INTEGER)");
+    connection.close();
+    connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:unprofiled");
+    connection.createStatement().executeUpdate("CREATE TABLE unprofiled (id INTEGER)");
+    connection.close();
+
+    final List<MockSpan> spans = mockTracer.finishedSpans();
+    assertEquals(2, spans.size());
+    assertEquals("profiled_service", spans.get(0).tags().get(Tags.PEER_SERVICE.getKey()));
+    assertEquals("myservice", spans.get(1).tags().get(Tags.PEER_SERVICE.getKey()));
+  }
+
+  private static PreparedStatementInformation postgresqlStatement(Driver driver, java.sql.Date hired)
+      throws SQLException {
+    final Connection connection = Mockito.mock(Connection.class, Mockito.RETURNS_DEEP_STUBS);
+    Mockito.when(connection.getMetaData().getURL()).thenReturn("jdbc:postgresql://localhost/jdbc");
+    Mockito.when(connection.getMetaData().getUserName()).thenReturn("app");
+    final PreparedStatementInformation statementInformation = new PreparedStatementInformation(
+        ConnectionInformation.fromDriver(driver, connection, 0),
+        "SELECT * FROM employee WHERE name = ? AND hired < ?");
+    statementInformation.setParameterValue(1, "O'Brien");
+    statementInformation.setParameterValue(2, hired);
+    return statementInformation;
+  }
+
   private static Connection createConnection() throws SQLException {
     final Connection connection = DriverManager.getConnection("jdbc:p6spy:hsqldb:mem:jdbc");
     return deepDelegates(connection);
@@ -129,6 +797,14 @@ public class JdbcTest {
     p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
   }
 
+  private static void simulateExecutions(TracingP6SpyListener p6SpyListener,
+      StatementInformation statementInformation, int executions) {
+    for (int i = 0; i < executions; i++) {
+      p6SpyListener.onBeforeAnyExecute(statementInformation);
+      p6SpyListener.onAfterAnyExecute(statementInformation, 1, null);
+    }
+  }
+
   private static <T> T deepDelegates(final T t) {
     final T mocked =
         (T) Mockito.mock(t.getClass(), new Answer() {
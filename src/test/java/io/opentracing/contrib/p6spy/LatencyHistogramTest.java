@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void should_map_values_to_increasing_buckets() {
+    int previous = -1;
+    for (long value = 0; value < 100000; value++) {
+      final int bucket = LatencyHistogram.bucket(value);
+      assertTrue(bucket == previous || bucket == previous + 1);
+      assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+      assertTrue(value < LatencyHistogram.lowerBound(bucket + 1));
+      previous = bucket;
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE >>> 20));
+  }
+
+  @Test
+  public void should_estimate_percentiles_within_a_bucket() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int millis = 1; millis <= 100; millis++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    assertEquals(100, histogram.count());
+    assertEquals(50, LatencyHistogram.toMillis(histogram.percentileNanos(50)), 50.0 / LatencyHistogram.SUB_BUCKETS);
+    assertEquals(99, LatencyHistogram.toMillis(histogram.percentileNanos(99)), 99.0 / LatencyHistogram.SUB_BUCKETS);
+    assertEquals(100, LatencyHistogram.toMillis(histogram.maxNanos()), 0);
+    assertEquals(0, new LatencyHistogram().percentileNanos(50));
+  }
+
+  @Test
+  public void should_expose_histograms_over_jmx() throws Exception {
+    final StatementLatencies latencies = new StatementLatencies("latency_test");
+    final SqlFingerprint fingerprint = new SqlFingerprinter().fingerprint("SELECT 1");
+    latencies.record("myservice", fingerprint, TimeUnit.MILLISECONDS.toNanos(3));
+    latencies.record("myservice", fingerprint, TimeUnit.MILLISECONDS.toNanos(5));
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = TracingMBeans.objectName("latency_test", StatementLatency.class,
+        "peerService", "myservice", "fingerprint", fingerprint.fingerprint);
+    assertEquals("com.p6spy.latency_test", name.getDomain());
+    assertEquals(2L, server.getAttribute(name, "Count"));
+    assertEquals(5.0, (Double) server.getAttribute(name, "MaxMillis"), 0);
+    assertEquals("SELECT ?", server.getAttribute(name, "Statement"));
+  }
+
+  @Test
+  public void should_evict_idle_histograms_once_full() throws Exception {
+    final StatementLatencies latencies = new StatementLatencies("eviction_test", 0);
+    final SqlFingerprinter fingerprinter = new SqlFingerprinter();
+    final SqlFingerprint first = fingerprinter.fingerprint("SELECT * FROM t0");
+    for (int i = 0; i <= StatementLatencies.MAX_HISTOGRAMS; i++) {
+      latencies.record("myservice", fingerprinter.fingerprint("SELECT * FROM t" + i), 1000);
+    }
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = TracingMBeans.objectName("eviction_test", StatementLatencies.class);
+    assertEquals(StatementLatencies.MAX_HISTOGRAMS, server.getAttribute(name, "Histograms"));
+    assertEquals(1L, server.getAttribute(name, "EvictedHistograms"));
+    assertEquals(0L, server.getAttribute(name, "DroppedStatements"));
+    assertFalse(server.isRegistered(TracingMBeans.objectName("eviction_test", StatementLatency.class,
+        "peerService", "myservice", "fingerprint", first.fingerprint)));
+
+    latencies.close();
+    assertFalse(server.isRegistered(name));
+    assertTrue(server.queryNames(new ObjectName("com.p6spy.eviction_test:*"), null).isEmpty());
+  }
+
+  @Test
+  public void should_count_statements_left_out_while_histograms_are_in_use() throws Exception {
+    final StatementLatencies latencies = new StatementLatencies("dropped_test", TimeUnit.HOURS.toNanos(1));
+    final SqlFingerprinter fingerprinter = new SqlFingerprinter();
+    for (int i = 0; i < StatementLatencies.MAX_HISTOGRAMS + 10; i++) {
+      latencies.record("myservice", fingerprinter.fingerprint("SELECT * FROM t" + i), 1000);
+    }
+
+    assertEquals(StatementLatencies.MAX_HISTOGRAMS, latencies.getHistograms());
+    assertEquals(0, latencies.getEvictedHistograms());
+    assertEquals(10, latencies.getDroppedStatements());
+    latencies.close();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import org.junit.Test;
+
+import static io.opentracing.contrib.p6spy.OverheadGovernor.WINDOW_NANOS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OverheadGovernorTest {
+
+  @Test
+  public void should_trace_everything_under_budget() {
+    final OverheadGovernor governor = new OverheadGovernor(5, 0);
+    long now = 0;
+    for (int window = 1; window <= 5; window++) {
+      governor.recordListener(1000);
+      now += WINDOW_NANOS;
+      governor.recordStatement(100000, now);
+    }
+    assertEquals(1, governor.sampleRate(), 0);
+    assertTrue(governor.sample());
+  }
+
+  @Test
+  public void should_back_off_to_metrics_only_and_ramp_back_up() {
+    final OverheadGovernor governor = new OverheadGovernor(5, 0);
+    long now = 0;
+    governor.recordListener(1000);
+    now += WINDOW_NANOS;
+    governor.recordStatement(1000, now);
+    assertEquals(0.5, governor.sampleRate(), 0);
+
+    for (int window = 0; window < 10; window++) {
+      governor.recordListener(1000);
+      now += WINDOW_NANOS;
+      governor.recordStatement(1000, now);
+    }
+    assertEquals(0, governor.sampleRate(), 0);
+    assertFalse(governor.sample());
+
+    governor.recordListener(1);
+    now += WINDOW_NANOS;
+    governor.recordStatement(1000, now);
+    assertEquals(OverheadGovernor.MIN_SAMPLE_RATE, governor.sampleRate(), 0);
+
+    for (int window = 0; window < 25; window++) {
+      governor.recordListener(1);
+      now += WINDOW_NANOS;
+      governor.recordStatement(1000, now);
+    }
+    assertEquals(1, governor.sampleRate(), 0);
+    assertTrue(governor.sample());
+  }
+
+  @Test
+  public void should_not_adjust_within_window() {
+    final OverheadGovernor governor = new OverheadGovernor(5, 0);
+    governor.recordListener(1000);
+    governor.recordStatement(1000, WINDOW_NANOS - 1);
+    assertEquals(1, governor.sampleRate(), 0);
+  }
+
+  @Test
+  public void should_share_governors_across_reloads() {
+    final OverheadGovernor governor = OverheadGovernor.publish("governor_test", 5);
+
+    assertSame(governor, OverheadGovernor.publish("governor_test", 5));
+    final OverheadGovernor replaced = OverheadGovernor.publish("governor_test", 10);
+    assertNotSame(governor, replaced);
+    assertNotSame(replaced, OverheadGovernor.publish("other_governor_test", 10));
+    assertNull(OverheadGovernor.publish("governor_test", 0));
+    assertNotSame(replaced, OverheadGovernor.publish("governor_test", 10));
+    assertNull(OverheadGovernor.publish("governor_test", 0));
+    assertNull(OverheadGovernor.publish("other_governor_test", 0));
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SqlFingerprinterTest {
+
+  @Test
+  public void should_replace_literals() {
+    assertEquals("SELECT * FROM employee WHERE name = ? AND age > ? AND salary < ?",
+        SqlFingerprinter.normalize("SELECT *  FROM employee\n WHERE name = 'O''Brien' AND age > 42 AND salary < 1.5e3"));
+  }
+
+  @Test
+  public void should_keep_identifiers_and_quoted_identifiers() {
+    assertEquals("SELECT col1, \"col 2\" FROM t2 WHERE t2.id = ?",
+        SqlFingerprinter.normalize("SELECT col1, \"col 2\" FROM t2 WHERE t2.id = 3"));
+  }
+
+  @Test
+  public void should_drop_comments() {
+    assertEquals("SELECT name FROM employee WHERE id = ?",
+        SqlFingerprinter.normalize("SELECT name -- don't select the salary\n FROM employee WHERE id = 1"));
+    assertEquals("SELECT name FROM employee WHERE id = ?",
+        SqlFingerprinter.normalize("/* v2 */ SELECT name FROM employee /* trace_id=4bf92f35 */ WHERE id = 1"));
+    assertEquals("SELECT name FROM employee",
+        SqlFingerprinter.normalize("SELECT name FROM employee -- trailing"));
+  }
+
+  @Test
+  public void should_give_same_fingerprint_to_statements_differing_by_comments() {
+    final SqlFingerprinter fingerprinter = new SqlFingerprinter();
+
+    assertEquals(fingerprinter.fingerprint("/* request 1 */ SELECT * FROM employee").fingerprint,
+        fingerprinter.fingerprint("/* request 2 */ SELECT * FROM employee").fingerprint);
+  }
+
+  @Test
+  public void should_collapse_in_lists() {
+    assertEquals("SELECT * FROM employee WHERE id IN (?)",
+        SqlFingerprinter.normalize("SELECT * FROM employee WHERE id IN (1, 2, 3, 4)"));
+    assertEquals("SELECT * FROM employee WHERE id IN (?)",
+        SqlFingerprinter.normalize("SELECT * FROM employee WHERE id IN (?,?)"));
+  }
+
+  @Test
+  public void should_collapse_multi_row_values() {
+    assertEquals("INSERT INTO employee (id, name) VALUES (?)",
+        SqlFingerprinter.normalize("INSERT INTO employee (id, name) VALUES (1, 'a'), (2, 'b'), (3, 'c')"));
+  }
+
+  @Test
+  public void should_give_same_fingerprint_to_statements_differing_by_literals() {
+    final SqlFingerprinter fingerprinter = new SqlFingerprinter();
+    final SqlFingerprint first = fingerprinter.fingerprint("SELECT * FROM employee WHERE id = 1");
+    final SqlFingerprint second = fingerprinter.fingerprint("SELECT * FROM employee WHERE id = 2");
+    final SqlFingerprint other = fingerprinter.fingerprint("SELECT * FROM employer WHERE id = 2");
+
+    assertEquals(first.fingerprint, second.fingerprint);
+    assertEquals(16, first.fingerprint.length());
+    assertNotEquals(first.fingerprint, other.fingerprint);
+    assertSame(first, fingerprinter.fingerprint("SELECT * FROM employee WHERE id = 1"));
+  }
+
+  @Test
+  public void should_not_cache_long_statements() {
+    final SqlFingerprinter fingerprinter = new SqlFingerprinter();
+    final StringBuilder sql = new StringBuilder("SELECT * FROM employee WHERE id IN (1");
+    while (sql.length() <= SqlFingerprinter.MAX_CACHED_SQL_LENGTH) {
+      sql.append(", 1");
+    }
+    sql.append(')');
+    final SqlFingerprint first = fingerprinter.fingerprint(sql.toString());
+    final SqlFingerprint second = fingerprinter.fingerprint(sql.toString());
+
+    assertNotSame(first, second);
+    assertEquals(first.fingerprint, second.fingerprint);
+    assertEquals(fingerprinter.fingerprint("SELECT * FROM employee WHERE id IN (1, 2)").fingerprint,
+        first.fingerprint);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatementExplainerTest {
+
+  @Test
+  public void should_explain_queries_in_the_dialect_of_the_database() {
+    assertEquals("EXPLAIN PLAN FOR SELECT * FROM t", StatementExplainer.explainStatement("hsqldb", "SELECT * FROM t"));
+    assertEquals("EXPLAIN select * from t", StatementExplainer.explainStatement("mysql", "select * from t"));
+    assertEquals("EXPLAIN WITH a AS (SELECT 1) SELECT * FROM a", StatementExplainer.explainStatement("postgresql", "WITH a AS (SELECT 1) SELECT * FROM a"));
+    assertEquals("EXPLAIN QUERY PLAN  (SELECT 1)", StatementExplainer.explainStatement("sqlite", " (SELECT 1)"));
+  }
+
+  @Test
+  public void should_not_explain_other_statements_or_databases() {
+    assertNull(StatementExplainer.explainStatement("hsqldb", "UPDATE t SET a = 1"));
+    assertNull(StatementExplainer.explainStatement("hsqldb", "DELETE FROM t"));
+    assertNull(StatementExplainer.explainStatement("oracle", "SELECT * FROM t"));
+    assertNull(StatementExplainer.explainStatement(null, "SELECT * FROM t"));
+    assertNull(StatementExplainer.explainStatement("hsqldb", null));
+  }
+
+  @Test
+  public void should_explain_placeholders_only_where_supported() {
+    assertTrue(StatementExplainer.explainsPlaceholders("hsqldb"));
+    assertFalse(StatementExplainer.explainsPlaceholders("postgresql"));
+    assertFalse(StatementExplainer.explainsPlaceholders("mysql"));
+    assertFalse(StatementExplainer.explainsPlaceholders(null));
+  }
+
+  @Test
+  public void should_bind_only_plain_values() {
+    assertTrue(StatementExplainer.bindable(new Object[] {null, "O'Brien", 1L, true, new byte[] {1},
+        java.sql.Date.valueOf("2000-01-01"), new java.sql.Timestamp(0)}));
+    assertFalse(StatementExplainer.bindable(new Object[] {1, new Object()}));
+    assertFalse(StatementExplainer.bindable(new Object[] {new java.util.Date()}));
+  }
+
+  @Test
+  public void should_explain_a_query_once_per_interval() {
+    final StatementExplainer explainer = new StatementExplainer(0, Long.MAX_VALUE);
+    final StatementExplainer.Explain explain = new StatementExplainer.Explain(null, "hsqldb",
+        "fingerprint", "EXPLAIN PLAN FOR SELECT 1", null, null, "jdbc:hsqldb:mem:none", null);
+    assertEquals(false, explainer.explainedRecently("fingerprint"));
+    explainer.submit(explain, null);
+    assertEquals(true, explainer.explainedRecently("fingerprint"));
+    assertEquals(false, explainer.explainedRecently("other"));
+    explainer.close();
+  }
+
+  @Test
+  public void should_share_explainers_across_reloads() {
+    final StatementExplainer explainer = StatementExplainer.publish("explainer_test", 10, 20, null, null);
+
+    assertSame(explainer, StatementExplainer.publish("explainer_test", 10, 20, null, null));
+    final StatementExplainer replaced = StatementExplainer.publish("explainer_test", 10, 30, null, null);
+    assertNotSame(explainer, replaced);
+    final StatementExplainer withUser = StatementExplainer.publish("explainer_test", 10, 30, "sa", "");
+    assertNotSame(replaced, withUser);
+    assertSame(withUser, StatementExplainer.publish("explainer_test", 10, 30, "sa", ""));
+    assertNull(StatementExplainer.publish("explainer_test", 0, 30, null, null));
+    assertNotSame(withUser, StatementExplainer.publish("explainer_test", 10, 30, "sa", ""));
+    assertNull(StatementExplainer.publish("explainer_test", 0, 30, null, null));
+  }
+}
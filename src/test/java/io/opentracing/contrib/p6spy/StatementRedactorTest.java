@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.common.ConnectionInformation;
+import com.p6spy.engine.common.PreparedStatementInformation;
+import com.p6spy.engine.common.StatementInformation;
+import java.util.BitSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatementRedactorTest {
+
+  @Test
+  public void should_mask_compared_columns() {
+    final StatementRedactor redactor = StatementRedactor.of("ssn,email", null, null, null);
+    final StatementRedactor.Plan plan = redactor.plan(
+        "SELECT * FROM employee e WHERE e.\"SSN\" = ? AND name LIKE ? AND email IN (?, ?) AND age BETWEEN ? AND ?");
+
+    assertEquals(bits(0, 2, 3), plan.masked);
+    assertSame(plan, redactor.plan(
+        "SELECT * FROM employee e WHERE e.\"SSN\" = ? AND name LIKE ? AND email IN (?, ?) AND age BETWEEN ? AND ?"));
+  }
+
+  @Test
+  public void should_mask_inserted_columns() {
+    final StatementRedactor redactor = StatementRedactor.of("ssn", null, null, null);
+    final StatementRedactor.Plan plan = redactor.plan(
+        "INSERT INTO employee (name, ssn) VALUES (?, LOWER(?)), (?, ?) -- ssn = ?");
+
+    assertEquals(bits(1, 3), plan.masked);
+  }
+
+  @Test
+  public void should_mask_all_values_of_tables() {
+    final StatementRedactor redactor = StatementRedactor.of(null, "payment", null, null);
+
+    assertTrue(redactor.plan("SELECT * FROM employee JOIN billing.payment p ON p.id = ? WHERE id = ?").maskAll);
+    assertSame(StatementRedactor.Plan.KEEP_ALL, redactor.plan("SELECT * FROM employee WHERE note = 'FROM payment' AND id = ?"));
+  }
+
+  @Test
+  public void should_mask_every_value_when_the_rules_cannot_be_read() {
+    final StatementRedactor redactor = StatementRedactor.MASK_ALL;
+    final StatementRedactor.Plan plan = redactor.plan("SELECT * FROM employee WHERE a = ? AND b = ?");
+
+    assertTrue(redactor.masks(plan, 0, new byte[] {1, 2}));
+    assertTrue(redactor.masks(plan, 1, null));
+    final PreparedStatementInformation statementInformation = new PreparedStatementInformation(
+        ConnectionInformation.fromTestConnection(null), "SELECT * FROM employee WHERE a = ? AND b = ?");
+    statementInformation.setParameterValue(1, "secret");
+    statementInformation.setParameterValue(2, new byte[] {1, 2});
+    assertEquals("SELECT * FROM employee WHERE a = '***' AND b = '***'",
+        StatementRenderer.sqlWithValues(statementInformation, 0, 0, redactor));
+  }
+
+  @Test
+  public void should_mask_parameters_and_values() {
+    final StatementRedactor redactor = StatementRedactor.of(null, null, "2", "secret");
+    final StatementRedactor.Plan plan = redactor.plan("SELECT * FROM employee WHERE a = ? AND b = ? AND c = ?");
+
+    assertEquals(bits(1), plan.masked);
+    assertTrue(redactor.masks(plan, 1, "public"));
+    assertTrue(redactor.masks(plan, 2, "top secret"));
+    assertEquals(false, redactor.masks(plan, 0, "public"));
+  }
+
+  @Test
+  public void should_match_raw_values() {
+    final StatementRedactor redactor = StatementRedactor.of(null, null, null, "^\\d{4}$|^it's$");
+    final StatementRedactor.Plan plan = redactor.plan("SELECT * FROM employee WHERE a = ?");
+
+    assertTrue(redactor.masks(plan, 0, "1234"));
+    assertTrue(redactor.masks(plan, 0, 1234));
+    assertTrue(redactor.masks(plan, 0, "it's"));
+    assertEquals(false, redactor.masks(plan, 0, "12345"));
+    assertEquals(false, redactor.masks(plan, 0, new byte[] {1, 2, 3, 4}));
+    assertEquals(false, redactor.masks(plan, 0, null));
+  }
+
+  @Test
+  public void should_remember_plans_per_statement() {
+    final StatementRedactor redactor = StatementRedactor.of("ssn", null, null, null);
+    final String sql = "SELECT * FROM employee WHERE ssn = ?";
+    final StatementInformation statementInformation =
+        new PreparedStatementInformation(ConnectionInformation.fromTestConnection(null), sql);
+
+    final StatementRedactor.Plan plan = redactor.plan(statementInformation, sql);
+    assertEquals(bits(0), plan.masked);
+    assertSame(plan, redactor.plan(statementInformation, sql));
+    assertSame(plan, redactor.plan(sql));
+  }
+
+  @Test
+  public void should_not_redact_without_rules() {
+    assertNull(StatementRedactor.of(null, " ", "", null));
+  }
+
+  private static BitSet bits(int... indexes) {
+    final BitSet bits = new BitSet();
+    for (int index : indexes) {
+      bits.set(index);
+    }
+    return bits;
+  }
+}
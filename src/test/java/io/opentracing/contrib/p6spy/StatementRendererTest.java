@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.common.ConnectionInformation;
+import com.p6spy.engine.common.PreparedStatementInformation;
+import com.p6spy.engine.common.StatementInformation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StatementRendererTest {
+
+  @Test
+  public void should_render_like_p6spy_without_limits() {
+    final PreparedStatementInformation statementInformation =
+        preparedStatement("INSERT INTO employee (id, name, manager) VALUES (?, ?, ?)", 1, "O'Brien");
+
+    assertEquals(statementInformation.getSqlWithValues(),
+        StatementRenderer.sqlWithValues(statementInformation, 0, 0));
+  }
+
+  @Test
+  public void should_stop_rendering_at_max_length() {
+    final PreparedStatementInformation statementInformation =
+        preparedStatement("INSERT INTO employee VALUES (?, ?), (?, ?)", 1, "first", 2, "second");
+
+    final String rendered = StatementRenderer.sqlWithValues(statementInformation, 40, 0);
+    assertEquals(40, rendered.length());
+    assertEquals("INSERT INTO employee VALUES (1, 'firs...", rendered);
+  }
+
+  @Test
+  public void should_render_only_the_start_of_large_values() {
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      large.append("it's ");
+    }
+    final PreparedStatementInformation statementInformation =
+        preparedStatement("INSERT INTO document VALUES (?, ?)", large.toString(), 42);
+
+    assertEquals("INSERT INTO document VALUES ('it''s it''s...",
+        StatementRenderer.sqlWithValues(statementInformation, 44, 0));
+    assertEquals(statementInformation.getSqlWithValues(),
+        StatementRenderer.sqlWithValues(statementInformation, 0, 0));
+  }
+
+  @Test
+  public void should_leave_placeholders_after_max_values() {
+    final PreparedStatementInformation statementInformation =
+        preparedStatement("SELECT * FROM employee WHERE id IN (?, ?, ?)", 1, 2, 3);
+
+    assertEquals("SELECT * FROM employee WHERE id IN (1, 2, ?)",
+        StatementRenderer.sqlWithValues(statementInformation, 0, 2));
+  }
+
+  @Test
+  public void should_mask_redacted_values() {
+    final StatementRedactor redactor = StatementRedactor.of("ssn, Email", null, "4", "\\d{4}-\\d{4}");
+    final PreparedStatementInformation statementInformation = preparedStatement(
+        "UPDATE employee SET email = ?, name = ?, phone = ? WHERE ssn = ? OR id = ?",
+        "a@b.c", "Alice", "5555-1234", 42, 7);
+
+    assertEquals("UPDATE employee SET email = '***', name = 'Alice', phone = '***' WHERE ssn = '***' OR id = 7",
+        StatementRenderer.sqlWithValues(statementInformation, 0, 0, redactor));
+  }
+
+  @Test
+  public void should_render_without_values_when_they_cannot_be_masked() {
+    final StatementRedactor redactor = StatementRedactor.of("ssn", null, null, null);
+    final PreparedStatementInformation statementInformation = preparedStatement("SELECT 1");
+
+    assertEquals("SELECT 1", StatementRenderer.sqlWithValues(statementInformation, 0, 0, redactor));
+  }
+
+  @Test
+  public void should_hash_statements_with_their_values() {
+    final String sql = "SELECT * FROM employee WHERE id = ? AND photo = ?";
+
+    assertEquals(StatementRenderer.sqlWithValuesHash(preparedStatement(sql, 1, new byte[] {1, 2})),
+        StatementRenderer.sqlWithValuesHash(preparedStatement(sql, 1, new byte[] {1, 2})));
+    assertNotEquals(StatementRenderer.sqlWithValuesHash(preparedStatement(sql, 1, new byte[] {1, 2})),
+        StatementRenderer.sqlWithValuesHash(preparedStatement(sql, 2, new byte[] {1, 2})));
+    assertNotEquals(StatementRenderer.sqlWithValuesHash(preparedStatement(sql, 1, new byte[] {1, 2})),
+        StatementRenderer.sqlWithValuesHash(preparedStatement(sql, 1, new byte[] {1, 3})));
+  }
+
+  @Test
+  public void should_copy_bound_values() {
+    final byte[] photo = {1, 2};
+    final Object[] values = StatementRenderer.boundValues(preparedStatement("SELECT ?, ?", 1, photo));
+
+    assertEquals(2, values.length);
+    assertEquals(1, values[0]);
+    assertArrayEquals(photo, (byte[]) values[1]);
+    assertNotSame(photo, values[1]);
+    assertEquals(0, StatementRenderer.boundValues(
+        new StatementInformation(ConnectionInformation.fromTestConnection(null))).length);
+  }
+
+  @Test
+  public void should_render_the_values_bound_when_captured() {
+    final PreparedStatementInformation statementInformation =
+        preparedStatement("SELECT * FROM employee WHERE name = ? AND id = ?", "O'Brien", 1);
+    final BoundStatement bound = StatementRenderer.bind(statementInformation, null);
+    statementInformation.setParameterValue(1, "Smith");
+
+    assertEquals("SELECT * FROM employee WHERE name = 'O''Brien' AND id = 1",
+        StatementRenderer.sqlWithValues(bound, 0, 0, null));
+    assertEquals("SELECT * FROM employee WHERE name = '***' AND id = 1",
+        StatementRenderer.sqlWithValues(bound, 0, 0, StatementRedactor.of("name", null, null, null)));
+  }
+
+  @Test
+  public void should_truncate_statements() {
+    final String sql = "SELECT * FROM employee";
+
+    assertSame(sql, StatementRenderer.truncate(sql, 0));
+    assertSame(sql, StatementRenderer.truncate(sql, sql.length()));
+    assertEquals("SELECT ...", StatementRenderer.truncate(sql, 10));
+    assertNull(StatementRenderer.truncate(null, 10));
+  }
+
+  private static PreparedStatementInformation preparedStatement(String sql, Object... values) {
+    final PreparedStatementInformation statementInformation =
+        new PreparedStatementInformation(ConnectionInformation.fromTestConnection(null), sql);
+    for (int i = 0; i < values.length; i++) {
+      statementInformation.setParameterValue(i + 1, values[i]);
+    }
+    return statementInformation;
+  }
+}
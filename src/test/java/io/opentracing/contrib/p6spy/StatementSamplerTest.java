@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatementSamplerTest {
+
+  @Test
+  public void should_always_sample_by_default() {
+    final StatementSampler sampler = StatementSampler.of(1.0, 0);
+
+    assertSame(StatementSampler.ALWAYS, sampler);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(sampler.sample());
+    }
+  }
+
+  @Test
+  public void should_never_sample_with_zero_rate() {
+    final StatementSampler sampler = StatementSampler.of(0.0, 0);
+
+    for (int i = 0; i < 100; i++) {
+      assertFalse(sampler.sample());
+    }
+  }
+
+  @Test
+  public void should_limit_spans_per_second() {
+    final StatementSampler sampler = StatementSampler.of(1.0, 5);
+
+    int sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      if (sampler.sample()) {
+        sampled++;
+      }
+    }
+    assertEquals(5, sampled);
+  }
+
+  @Test
+  public void should_refill_rate_limiter_over_time() throws InterruptedException {
+    final RateLimiter rateLimiter = new RateLimiter(100);
+    while (rateLimiter.tryAcquire()) {
+    }
+
+    Thread.sleep(50);
+    assertTrue(rateLimiter.tryAcquire());
+  }
+
+  @Test
+  public void should_take_permits_in_batches_at_high_rates() {
+    final RateLimiter rateLimiter = new RateLimiter(100000);
+    final long start = System.nanoTime();
+    int acquired = 0;
+    while (rateLimiter.tryAcquire()) {
+      acquired++;
+    }
+    final long refilled = (System.nanoTime() - start) / 10000 + 1;
+
+    assertTrue(acquired >= 100000);
+    // the permits left in the pool of the thread are lost for the burst
+    assertTrue(acquired <= 100000 + refilled);
+  }
+
+  @Test
+  public void should_let_unused_pooled_permits_lapse() {
+    // batches of 10 permits, each taken for 10 intervals of 390625 ns
+    final RateLimiter rateLimiter = new RateLimiter(2560, 0);
+    final long batchNanos = 10 * 390625;
+    while (rateLimiter.tryAcquire(0)) {
+    }
+    // the bucket holds a batch again, 9 permits of which are left in the pool
+    final long refilled = batchNanos;
+    assertTrue(rateLimiter.tryAcquire(refilled));
+
+    int acquired = 0;
+    while (rateLimiter.tryAcquire(refilled + batchNanos)) {
+      acquired++;
+    }
+    assertEquals(10, acquired);
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.event.CompoundJdbcEventListener;
+import com.p6spy.engine.event.JdbcEventListener;
+import com.p6spy.engine.wrapper.ConnectionWrapper;
+import io.opentracing.Scope;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.util.GlobalTracerTestUtil;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives statements through p6spy from many threads at once, checking that every statement is
+ * reported exactly once, under the parent span of its thread, that the listener keeps no state once
+ * the connections are closed, and logging the throughput against the same statements executed
+ * without p6spy.
+ */
+public class StressTest {
+  private static final Logger log = Logger.getLogger(StressTest.class.getName());
+  private static final int[] THREADS = {1, 4, 16, 64, 128};
+  private static final int STATEMENTS_PER_THREAD = 256;
+  private static final String TRACED_URL = "jdbc:p6spy:hsqldb:mem:stress";
+  private static final String UNTRACED_URL = "jdbc:hsqldb:mem:stress";
+  private static final String SELECT = "SELECT id FROM stress WHERE id = ?";
+
+  private static final MockTracer mockTracer = new MockTracer();
+  private static Connection setupConnection;
+  private static TracingP6SpyListener listener;
+
+  @BeforeClass
+  public static void init() throws SQLException {
+    GlobalTracerTestUtil.setGlobalTracerUnconditionally(mockTracer);
+    setupConnection = DriverManager.getConnection(UNTRACED_URL);
+    setupConnection.createStatement().executeUpdate("CREATE TABLE stress (id INTEGER PRIMARY KEY)");
+    for (int id = 0; id < 16; id++) {
+      setupConnection.createStatement().executeUpdate("INSERT INTO stress VALUES (" + id + ")");
+    }
+    try (Connection connection = DriverManager.getConnection(TRACED_URL)) {
+      listener = tracingListener(((ConnectionWrapper) connection).getEventListener());
+    }
+  }
+
+  @AfterClass
+  public static void close() throws SQLException {
+    setupConnection.createStatement().executeUpdate("DROP TABLE stress");
+    setupConnection.close();
+  }
+
+  @Before
+  public void before() {
+    mockTracer.reset();
+  }
+
+  @Test
+  public void should_report_statements_under_their_thread_parent_span() throws Exception {
+    // warm up, so that the first measures are not slowed down by class loading and compilation
+    run(UNTRACED_URL, 4, false);
+    run(TRACED_URL, 4, true);
+
+    for (int threads : THREADS) {
+      mockTracer.reset();
+      final long untracedNanos = run(UNTRACED_URL, threads, false).nanos;
+      assertEquals(0, mockTracer.finishedSpans().size());
+
+      mockTracer.reset();
+      final Run traced = run(TRACED_URL, threads, true);
+      checkParents(traced, threads);
+      checkListenerState();
+
+      mockTracer.reset();
+      final Run tracedWithoutParent = run(TRACED_URL, threads, false);
+      final List<MockSpan> spans = mockTracer.finishedSpans();
+      assertEquals(threads * STATEMENTS_PER_THREAD, spans.size());
+      for (MockSpan span : spans) {
+        assertEquals(0, span.parentId());
+      }
+      SpanChecker.checkTags(spans, "myservice", UNTRACED_URL);
+      assertNull(mockTracer.scopeManager().activeSpan());
+      checkListenerState();
+
+      log.info(String.format("%3d threads: untraced %,10.0f statements/s, traced %,10.0f statements/s"
+              + " (%.2f), traced without parent %,10.0f statements/s (%.2f)",
+          threads, throughput(threads, untracedNanos), throughput(threads, traced.nanos),
+          (double) untracedNanos / traced.nanos, throughput(threads, tracedWithoutParent.nanos),
+          (double) untracedNanos / tracedWithoutParent.nanos));
+    }
+  }
+
+  private static void checkParents(Run run, int threads) {
+    final List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(threads * STATEMENTS_PER_THREAD + threads, finishedSpans.size());
+    final Map<Long, MockSpan> parents = new HashMap<>();
+    for (MockSpan parent : run.parents) {
+      parents.put(parent.context().spanId(), parent);
+    }
+    final Map<Long, Integer> children = new HashMap<>();
+    for (MockSpan span : finishedSpans) {
+      if (parents.containsKey(span.context().spanId())) {
+        continue;
+      }
+      final MockSpan parent = parents.get(span.parentId());
+      assertTrue("span without the parent span of its thread", parent != null);
+      assertEquals(parent.context().traceId(), span.context().traceId());
+      final Integer count = children.get(span.parentId());
+      children.put(span.parentId(), count == null ? 1 : count + 1);
+    }
+    for (Integer count : children.values()) {
+      assertEquals(STATEMENTS_PER_THREAD, (int) count);
+    }
+  }
+
+  /**
+   * Checks that nothing is left of the statements and connections once they are all closed.
+   */
+  private static void checkListenerState() {
+    assertEquals(0, listener.executingSpans.size());
+    assertEquals(0, listener.transactions.size());
+    assertEquals(0, listener.statementRuns.size());
+  }
+
+  private static TracingP6SpyListener tracingListener(JdbcEventListener eventListener) {
+    if (eventListener instanceof TracingP6SpyListener) {
+      return (TracingP6SpyListener) eventListener;
+    }
+    if (eventListener instanceof CompoundJdbcEventListener) {
+      for (JdbcEventListener child : ((CompoundJdbcEventListener) eventListener).getEventListeners()) {
+        final TracingP6SpyListener found = tracingListener(child);
+        if (found != null) {
+          return found;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Executes {@link #STATEMENTS_PER_THREAD} statements on each thread, each thread using its own
+   * connection like with a connection pool.
+   */
+  private static Run run(final String url, int threads, final boolean withParent) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    try {
+      final List<Future<MockSpan>> futures = new ArrayList<>();
+      for (int thread = 0; thread < threads; thread++) {
+        futures.add(executor.submit(new Callable<MockSpan>() {
+          @Override public MockSpan call() throws Exception {
+            try (Connection connection = DriverManager.getConnection(url)) {
+              final PreparedStatement statement = connection.prepareStatement(SELECT);
+              ready.countDown();
+              start.await();
+              if (!withParent) {
+                execute(statement, STATEMENTS_PER_THREAD);
+                return null;
+              }
+              final MockSpan parent = mockTracer.buildSpan("parent").start();
+              try (Scope scope = mockTracer.activateSpan(parent)) {
+                execute(statement, STATEMENTS_PER_THREAD);
+              } finally {
+                parent.finish();
+              }
+              assertNull(mockTracer.scopeManager().activeSpan());
+              return parent;
+            }
+          }
+        }));
+      }
+      ready.await();
+      final long startNanos = System.nanoTime();
+      start.countDown();
+      final Run run = new Run();
+      for (Future<MockSpan> future : futures) {
+        final MockSpan parent = future.get(1, TimeUnit.MINUTES);
+        if (parent != null) {
+          run.parents.add(parent);
+        }
+      }
+      run.nanos = System.nanoTime() - startNanos;
+      return run;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void execute(PreparedStatement statement, int statements) throws SQLException {
+    for (int i = 0; i < statements; i++) {
+      statement.setInt(1, i & 15);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        assertTrue(resultSet.next());
+      }
+    }
+  }
+
+  private static double throughput(int threads, long nanos) {
+    return threads * STATEMENTS_PER_THREAD * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+  }
+
+  private static final class Run {
+    final List<MockSpan> parents = new ArrayList<>();
+    long nanos;
+  }
+}
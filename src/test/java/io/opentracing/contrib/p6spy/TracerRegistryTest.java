@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.util.GlobalTracer;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TracerRegistryTest {
+
+  @After
+  public void after() {
+    TracerRegistry.clear();
+  }
+
+  @Test
+  public void should_resolve_most_specific_tracer() {
+    final MockTracer defaultTracer = new MockTracer();
+    final MockTracer prefixTracer = new MockTracer();
+    final MockTracer urlTracer = new MockTracer();
+    final MockTracer longerUrlTracer = new MockTracer();
+    TracerRegistry.registerDefault(defaultTracer);
+    TracerRegistry.registerForJmxPrefix("orders", prefixTracer);
+    TracerRegistry.registerForUrlPrefix("jdbc:mysql://", urlTracer);
+    TracerRegistry.registerForUrlPrefix("jdbc:mysql://orders-db", longerUrlTracer);
+
+    assertSame(longerUrlTracer, TracerRegistry.resolve("orders", "jdbc:mysql://orders-db/orders").tracer());
+    assertSame(urlTracer, TracerRegistry.resolve("orders", "jdbc:mysql://users-db/users").tracer());
+    assertSame(prefixTracer, TracerRegistry.resolve("orders", "jdbc:hsqldb:mem:orders").tracer());
+    assertSame(defaultTracer, TracerRegistry.resolve(null, "jdbc:hsqldb:mem:orders").tracer());
+    assertSame(defaultTracer, TracerRegistry.resolve(null, null).tracer());
+  }
+
+  @Test
+  public void should_not_resolve_noop_tracer() {
+    TracerRegistry.registerDefault(NoopTracerFactory.create());
+    assertNull(TracerRegistry.resolve(null, "jdbc:hsqldb:mem:orders").tracer());
+  }
+
+  @Test
+  public void should_fall_back_to_global_tracer() {
+    assertSame(GlobalTracer.get(), TracerRegistry.resolve(null, "jdbc:hsqldb:mem:orders").tracer);
+  }
+
+  @Test
+  public void should_change_generation_on_registration() {
+    final int generation = TracerRegistry.generation();
+    TracerRegistry.registerForJmxPrefix("orders", new MockTracer());
+    assertNotEquals(generation, TracerRegistry.generation());
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import com.p6spy.engine.spy.option.P6OptionsRepository;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TracingOptionsResolverTest {
+
+  @Test
+  public void should_use_defaults_when_url_has_no_options() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", true, true);
+    final ResolvedTracingOptions options = resolver.resolve("jdbc:hsqldb:mem:resolver");
+
+    assertEquals("default", options.peerService);
+    assertEquals("hsqldb", options.dbType);
+    assertTrue(options.traceWithActiveSpanOnly);
+    assertTrue(options.traceWithStatementValues);
+  }
+
+  @Test
+  public void should_override_defaults_with_url_options() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", true, true);
+    final ResolvedTracingOptions options = resolver.resolve(
+        "jdbc:mysql://localhost/db?tracingPeerService=inurl;traceWithActiveSpanOnly=false;traceWithStatementValues=false");
+
+    assertEquals("inurl", options.peerService);
+    assertEquals("mysql", options.dbType);
+    assertFalse(options.traceWithActiveSpanOnly);
+    assertFalse(options.traceWithStatementValues);
+  }
+
+  @Test
+  public void should_resolve_again_after_update() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", true, false);
+    final int generation = resolver.generation();
+    final ResolvedTracingOptions before = resolver.resolve("jdbc:hsqldb:mem:resolver;traceWithActiveSpanOnly=false");
+
+    resolver.update(ResolvedTracingOptions.builder().peerService("reloaded").traceWithStatementValues(true).build());
+    final ResolvedTracingOptions after = resolver.resolve("jdbc:hsqldb:mem:resolver;traceWithActiveSpanOnly=false");
+
+    assertTrue(generation != resolver.generation());
+    assertEquals("default", before.peerService);
+    assertFalse(before.traceWithStatementValues);
+    assertEquals("reloaded", after.peerService);
+    assertTrue(after.traceWithStatementValues);
+    assertFalse(after.traceWithActiveSpanOnly);
+  }
+
+  @Test
+  public void should_use_profile_with_longest_url_prefix() {
+    final Map<String, String> properties = new HashMap<>();
+    properties.put("tracing.profile.orders.urlPrefix", "jdbc:mysql://orders");
+    properties.put("tracing.profile.orders.tracingPeerService", "orders");
+    properties.put("tracing.profile.orders.traceSampleRate", "0.5");
+    properties.put("tracing.profile.archive.urlPrefix", "jdbc:mysql://orders-archive");
+    properties.put("tracing.profile.archive.tracingPeerService", "archive");
+    properties.put("tracing.profile.archive.traceWithStatementValues", "true");
+    properties.put("tracing.profile.broken.tracingPeerService", "broken");
+    final TracingP6SpyOptions spyOptions = new TracingP6SpyOptions(new P6OptionsRepository());
+    spyOptions.load(properties);
+    assertEquals(2, spyOptions.profiles().size());
+
+    final TracingOptionsResolver resolver =
+        new TracingOptionsResolver(new TracingOptionsResolver("default", true, false).resolve(null), spyOptions.profiles());
+    final ResolvedTracingOptions orders = resolver.resolve("jdbc:mysql://orders/db");
+    final ResolvedTracingOptions archive = resolver.resolve("jdbc:mysql://orders-archive/db");
+    final ResolvedTracingOptions overridden = resolver.resolve("jdbc:mysql://orders/db?tracingPeerService=inurl;traceSampleRate=0.25");
+    final ResolvedTracingOptions other = resolver.resolve("jdbc:mysql://users/db");
+
+    assertEquals("orders", orders.peerService);
+    assertEquals("mysql", orders.dbType);
+    assertEquals(0.5, orders.traceSampleRate, 0.0);
+    assertFalse(orders.traceWithStatementValues);
+    assertTrue(orders.traceWithActiveSpanOnly);
+    assertEquals("archive", archive.peerService);
+    assertEquals(1.0, archive.traceSampleRate, 0.0);
+    assertTrue(archive.traceWithStatementValues);
+    assertEquals("inurl", overridden.peerService);
+    assertEquals(0.25, overridden.traceSampleRate, 0.0);
+    assertEquals("default", other.peerService);
+  }
+
+  @Test
+  public void should_override_sampling_with_url_options() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver(ResolvedTracingOptions.builder()
+        .traceSampleRate(0.5)
+        .traceMaxSpansPerSecond(100)
+        .build());
+    final ResolvedTracingOptions options = resolver.resolve(
+        "jdbc:hsqldb:mem:resolver;traceSampleRate=0.25;traceMaxSpansPerSecond=10");
+
+    assertEquals(0.25, options.traceSampleRate, 0.0);
+    assertEquals(10, options.traceMaxSpansPerSecond);
+  }
+
+  @Test
+  public void should_share_rate_limiters_by_profile_across_reloads() {
+    final Map<String, String> properties = new HashMap<>();
+    properties.put("tracing.profile.orders.urlPrefix", "jdbc:mysql://orders");
+    properties.put("tracing.profile.orders.traceMaxSpansPerSecond", "100");
+    final TracingP6SpyOptions spyOptions = new TracingP6SpyOptions(new P6OptionsRepository());
+    spyOptions.load(properties);
+    final TracingOptionsResolver resolver = new TracingOptionsResolver(
+        ResolvedTracingOptions.builder().traceMaxSpansPerSecond(100).build(), spyOptions.profiles());
+
+    final RateLimiter defaults = resolver.resolve("jdbc:mysql://users/db").sampler.rateLimiter;
+    final RateLimiter orders = resolver.resolve("jdbc:mysql://orders/db").sampler.rateLimiter;
+    assertNotNull(defaults);
+    assertNotSame(defaults, orders);
+    assertSame(defaults, resolver.resolve("jdbc:mysql://products/db").sampler.rateLimiter);
+    assertSame(defaults, resolver.resolve(null).sampler.rateLimiter);
+    assertSame(orders, resolver.resolve("jdbc:mysql://orders/other").sampler.rateLimiter);
+    assertNotSame(orders, resolver.resolve("jdbc:mysql://orders/db?traceMaxSpansPerSecond=10").sampler.rateLimiter);
+
+    resolver.update(ResolvedTracingOptions.builder().traceMaxSpansPerSecond(100).build(), spyOptions.profiles());
+    assertSame(defaults, resolver.resolve("jdbc:mysql://users/db").sampler.rateLimiter);
+    assertSame(orders, resolver.resolve("jdbc:mysql://orders/db").sampler.rateLimiter);
+
+    resolver.update(ResolvedTracingOptions.builder().traceMaxSpansPerSecond(50).build(), spyOptions.profiles());
+    assertNotSame(defaults, resolver.resolve("jdbc:mysql://users/db").sampler.rateLimiter);
+    assertSame(orders, resolver.resolve("jdbc:mysql://orders/db").sampler.rateLimiter);
+  }
+
+  @Test
+  public void should_ignore_invalid_sample_rate() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", false, false);
+    final ResolvedTracingOptions options = resolver.resolve("jdbc:hsqldb:mem:resolver;traceSampleRate=2");
+
+    assertEquals(1.0, options.traceSampleRate, 0.0);
+  }
+
+  @Test
+  public void should_ignore_contradictory_url_options() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", false, false);
+    final ResolvedTracingOptions options = resolver.resolve(
+        "jdbc:hsqldb:mem:resolver;traceWithActiveSpanOnly=true;traceWithActiveSpanOnly=false");
+
+    assertFalse(options.traceWithActiveSpanOnly);
+  }
+
+  @Test
+  public void should_parse_each_url_once() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", false, false);
+
+    assertSame(resolver.resolve("jdbc:hsqldb:mem:resolver"), resolver.resolve("jdbc:hsqldb:mem:resolver"));
+  }
+
+  @Test
+  public void should_keep_caching_urls_beyond_the_cache_size() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", false, false);
+    for (int i = 0; i < 2 * TracingOptionsResolver.MAX_CACHED_URLS; i++) {
+      resolver.resolve("jdbc:hsqldb:mem:resolver" + i);
+    }
+
+    assertSame(resolver.resolve("jdbc:hsqldb:mem:resolver"), resolver.resolve("jdbc:hsqldb:mem:resolver"));
+  }
+
+  @Test
+  public void should_resolve_null_url() {
+    final TracingOptionsResolver resolver = new TracingOptionsResolver("default", false, false);
+    final ResolvedTracingOptions options = resolver.resolve(null);
+
+    assertEquals("default", options.peerService);
+    assertNull(options.dbType);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.p6spy;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WeakKeyCacheTest {
+
+  @Test
+  public void should_compare_keys_by_identity() {
+    final WeakKeyCache<String, String> cache = new WeakKeyCache<>(64);
+    final String key = new String("statement");
+    final String equalKey = new String("statement");
+    cache.put(key, "first");
+    cache.put(equalKey, "second");
+
+    assertEquals("first", cache.get(key));
+    assertEquals("second", cache.get(equalKey));
+    assertEquals(2, cache.size());
+    assertEquals("first", cache.remove(key));
+    assertNull(cache.get(key));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void should_remove_only_the_expected_value() {
+    final WeakKeyCache<String, String> cache = new WeakKeyCache<>(64);
+    final String key = new String("connection");
+    cache.put(key, "second");
+
+    assertFalse(cache.remove(key, "first"));
+    assertEquals("second", cache.get(key));
+    assertTrue(cache.remove(key, "second"));
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  public void should_evict_the_oldest_entry_of_a_full_stripe() {
+    final WeakKeyCache<Object, Integer> cache = new WeakKeyCache<>(16);
+    final List<Object> keys = new ArrayList<>();
+    final List<Integer> evicted = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      final Object key = new Object();
+      keys.add(key);
+      final Integer value = cache.put(key, i);
+      if (value != null) {
+        evicted.add(value);
+      }
+    }
+
+    assertEquals(16, cache.size());
+    assertEquals(1000 - 16, evicted.size());
+    for (int i = 0; i < keys.size(); i++) {
+      final Integer value = cache.get(keys.get(i));
+      if (value != null) {
+        assertEquals(i, (int) value);
+      } else {
+        // each stripe keeps its newest entry
+        assertSame(Boolean.TRUE, evicted.contains(i));
+      }
+    }
+  }
+
+  @Test
+  public void should_never_evict_when_unbounded() {
+    final WeakKeyCache<Object, Integer> cache = new WeakKeyCache<>(0);
+    final List<Object> keys = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      final Object key = new Object();
+      keys.add(key);
+      assertNull(cache.put(key, i));
+    }
+
+    assertEquals(10000, cache.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(i, (int) cache.get(keys.get(i)));
+    }
+    for (int i = 0; i < keys.size(); i += 2) {
+      assertEquals(i, (int) cache.remove(keys.get(i)));
+    }
+    assertEquals(5000, cache.size());
+    assertEquals(1, (int) cache.get(keys.get(1)));
+  }
+
+  @Test
+  public void should_replace_the_value_of_a_key_without_evicting() {
+    final WeakKeyCache<Object, Integer> cache = new WeakKeyCache<>(16);
+    final Object key = new Object();
+    assertNull(cache.put(key, 1));
+    for (int i = 2; i < 100; i++) {
+      assertNull(cache.put(key, i));
+    }
+    assertEquals(99, (int) cache.get(key));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void should_forget_collected_keys() throws InterruptedException {
+    final WeakKeyCache<Object, byte[]> cache = new WeakKeyCache<>(4096);
+    for (int i = 0; i < 100; i++) {
+      cache.put(new Object(), new byte[16]);
+    }
+    for (int i = 0; i < 100 && cache.size() > 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(0, cache.size());
+  }
+}
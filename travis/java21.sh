@@ -0,0 +1,45 @@
+#
+# Copyright 2017-2018 The OpenTracing Authors
+#
+# Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+# in compliance with the License. You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software distributed under the License
+# is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+# or implied. See the License for the specific language governing permissions and limitations under
+# the License.
+#
+
+
+# Builds the multi-release jar with the java21 profile, and runs the tests against it on Java 21.
+# The build itself runs on the JDK of the job, Java 21 being declared as a toolchain.
+
+set -euo pipefail
+set -x
+
+JDK21_HOME="${JDK21_HOME:-$HOME/jdk-21}"
+if [ ! -x "${JDK21_HOME}/bin/java" ]; then
+  mkdir -p "${JDK21_HOME}"
+  curl -sSfL "https://api.adoptium.net/v3/binary/latest/21/ga/linux/x64/jdk/hotspot/normal/eclipse" \
+    | tar -xz --strip-components=1 -C "${JDK21_HOME}"
+fi
+
+mkdir -p "$HOME/.m2"
+cat > "$HOME/.m2/toolchains.xml" <<TOOLCHAINS
+<?xml version="1.0" encoding="UTF-8"?>
+<toolchains>
+  <toolchain>
+    <type>jdk</type>
+    <provides>
+      <version>21</version>
+    </provides>
+    <configuration>
+      <jdkHome>${JDK21_HOME}</jdkHome>
+    </configuration>
+  </toolchain>
+</toolchains>
+TOOLCHAINS
+
+./mvnw verify -Pjava21 -Dmaven.javadoc.skip=true -B -V